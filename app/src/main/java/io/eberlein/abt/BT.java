@@ -36,13 +36,43 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.AsyncTask;
 import android.util.Log;
+import android.util.SparseArray;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 
 /**
@@ -52,6 +82,7 @@ import java.util.UUID;
 public class BT {
     private static BluetoothManager manager;
     private static BluetoothAdapter adapter;
+    private static volatile Tracer tracer = null;
 
     public static class ClassicScanner {
         private static final String TAG = "BT.Scanner";
@@ -70,8 +101,8 @@ public class BT {
             public void onReceive(Context context, Intent intent) {
                 if(BluetoothDevice.ACTION_FOUND.equals(intent.getAction())){
                     BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    Log.d(TAG, device.getAddress() + " : " + device.getName());
                     if(!devices.contains(device)) devices.add(device);
+                    trace(Tracer.DEVICE_FOUND, 0, devices.size());
                     onEventListener.onDeviceFound(device);
                 }
             }
@@ -81,8 +112,7 @@ public class BT {
             @Override
             public void onReceive(Context context, Intent intent) {
                 if(BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(intent.getAction())){
-                    Log.d(TAG, "discovery finished");
-                    Log.d(TAG, "scan yielded " + devices.size() + " devices");
+                    trace(Tracer.DISCOVERY_FINISHED, 0, devices.size());
                     onEventListener.onDiscoveryFinished(devices);
                 }
             }
@@ -92,7 +122,7 @@ public class BT {
             @Override
             public void onReceive(Context context, Intent intent) {
                 if(BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(intent.getAction())){
-                    Log.d(TAG, "discovery started");
+                    trace(Tracer.DISCOVERY_STARTED, 0, 0);
                     onEventListener.onDiscoveryStarted();
                 }
             }
@@ -162,6 +192,25 @@ public class BT {
         ClassicScanner.unregisterReceivers(ctx);
     }
 
+    /**
+     * sets the tracer which records connection events, null disables tracing
+     * @param t tracer, e.g. a RingBufferTracer
+     */
+    public static void setTracer(Tracer t){
+        tracer = t;
+    }
+
+    /**
+     * records an event if a tracer is set, does not allocate
+     * @param event one of the Tracer event constants
+     * @param session id of the client, 0 outside of a client
+     * @param size bytes or items involved
+     */
+    static void trace(int event, int session, long size){
+        Tracer t = tracer;
+        if(t != null) t.record(event, session, size);
+    }
+
     /**
      * enables the bluetooth adapter
      */
@@ -267,6 +316,7 @@ public class BT {
             try {
                 socket = device.createInsecureRfcommSocketToServiceRecord(uuid);
                 socket.connect();
+                trace(Tracer.CONNECT, 0, 0);
             } catch (IOException e){
                 e.printStackTrace();
             }
@@ -330,7 +380,7 @@ public class BT {
         @Override
         public void createServerSocket(String name, UUID uuid) {
             try{
-                Log.d(TAG, "creating server socket");
+                if(BuildConfig.DEBUG) Log.d(TAG, "creating server socket");
                 serverSocket = adapter.listenUsingInsecureRfcommWithServiceRecord(name, uuid);
                 onServerSocketCreated();
             } catch (IOException e){
@@ -340,7 +390,7 @@ public class BT {
 
         @Override
         public void onServerSocketCreated() {
-            Log.d(TAG, "server socket created");
+            if(BuildConfig.DEBUG) Log.d(TAG, "server socket created");
         }
 
         @Override
@@ -364,7 +414,7 @@ public class BT {
          */
         @Override
         public void onClientConnected(BluetoothSocket socket) {
-            Log.d(TAG, "client '" + socket.getRemoteDevice().getName() + "; " + socket.getRemoteDevice().getAddress() + "' connected");
+            trace(Tracer.ACCEPT, 0, 0);
         }
 
         /**
@@ -374,7 +424,7 @@ public class BT {
         @Override
         public BluetoothSocket acceptServerSocket() {
             try {
-                Log.d(TAG, "accepting incoming connections");
+                if(BuildConfig.DEBUG) Log.d(TAG, "accepting incoming connections");
                 BluetoothSocket cs = serverSocket.accept();
                 onClientConnected(cs);
                 return cs;
@@ -387,7 +437,7 @@ public class BT {
         @Override
         public void closeServerSocket() {
             try {
-                Log.d(TAG, "closing socket");
+                if(BuildConfig.DEBUG) Log.d(TAG, "closing socket");
                 serverSocket.close();
             } catch (IOException e){
                 onServerSocketCloseException(e);
@@ -407,335 +457,2574 @@ public class BT {
         }
     }
 
-    interface ClientInterface {
-        void onReady();
-        void onExecuted();
-        void onFinished();
-    }
-
-    interface ReaderInterface {
-        void inform(int message);
-        void finished();
-    }
-
-    interface WriterInterface {
-        void inform(int message);
-        void finished();
-    }
-
-    interface IPCInterface {
-        void onMessage(int message);
-    }
-
-    public interface OnDataReceivedInterface {
-        void onReceived(String data);
-    }
-
-    @SuppressLint("StaticFieldLeak")
-    public static abstract class Client extends AsyncTask<Void, Void, Void> implements ClientInterface {
-
-        public static class Reader extends AsyncTask<Void, Void, Void> implements IPCInterface {
-            private static final String TAG = "BT.Client.Reader";
+    /**
+     * size-classed pool of heap and direct byte buffers
+     * used by the client reader, writer and codec stages to avoid per message allocations
+     */
+    public static class BufferPool {
+        private static final String TAG = "BT.BufferPool";
 
-            static final String DATA_IS_READY = "READY";
-            static final int MSG_READER_DEAD = -1;
-            static final int MSG_READER_READY = 0;
-            static final int MSG_REMOTE_READY = 1;
+        static final int[] SIZE_CLASSES = {256, 1024, 4096, 16384, 65536};
+        static final int DEFAULT_MAX_POOLED_BYTES = 1024 * 1024;
 
-            private InputStream inputStream;
-            private boolean doRun;
-            private OnDataReceivedInterface onDataReceivedInterface;
+        private static BufferPool defaultPool = new BufferPool(DEFAULT_MAX_POOLED_BYTES);
 
-            private ReaderInterface readerInterface;
-            private WriterInterface writerInterface;
+        /**
+         * a pooled buffer with a reference count
+         * the buffer goes back to its pool once the last reference has been released
+         */
+        public static class Buffer {
+            private final BufferPool pool;
+            private final ByteBuffer buffer;
+            private final int sizeClass;
+            private final AtomicInteger refCnt = new AtomicInteger();
+            private LeakTracker tracker;
+
+            private Buffer(BufferPool pool, ByteBuffer buffer, int sizeClass){
+                this.pool = pool;
+                this.buffer = buffer;
+                this.sizeClass = sizeClass;
+            }
 
             /**
-             * instantiates a Reader object
-             * @param inputStream socket input stream
-             * @param onDataReceivedInterface onDataReceivedInterface
-             * @param readerInterface readerInterface for ipc
-             * @param writerInterface writerInterface for ipc
+             * @return the underlying byte buffer
              */
-            Reader(InputStream inputStream, OnDataReceivedInterface onDataReceivedInterface, ReaderInterface readerInterface, WriterInterface writerInterface){
-                this.inputStream = inputStream;
-                this.onDataReceivedInterface = onDataReceivedInterface;
-                this.readerInterface = readerInterface;
-                this.writerInterface = writerInterface;
-                doRun = true;
-            }
-
-            private void run(){
-                int bytes;
-                byte[] buffer = new byte[1024];
-                writerInterface.inform(MSG_READER_READY);
-                while (doRun){
-                    try {
-                        bytes = inputStream.read(buffer);
-                        String data = new String(buffer, 0, bytes);
-                        for(String s : data.split("\n")) {
-                            if (s.equals(DATA_IS_READY))
-                                writerInterface.inform(MSG_REMOTE_READY);
-                            else onDataReceivedInterface.onReceived(s);
-                        }
-                    } catch (IOException e){
-                        e.printStackTrace();
-                        doRun = false;
-                        writerInterface.inform(MSG_READER_DEAD);
-                    }
-                }
-                readerInterface.finished();
+            public ByteBuffer buffer() {
+                return buffer;
             }
 
-            @Override
-            protected void onCancelled() {
-                super.onCancelled();
-                doRun = false;
+            /**
+             * @return the backing array of a heap buffer
+             */
+            public byte[] array(){
+                return buffer.array();
             }
 
-            @Override
-            protected Void doInBackground(Void... voids) {
-                run();
-                return null;
+            public int capacity(){
+                return buffer.capacity();
             }
 
-            void stop(){
-                doRun = false;
+            public boolean isDirect(){
+                return buffer.isDirect();
             }
 
-            @Override
-            public void onMessage(int message) {
-
+            public int refCnt(){
+                return refCnt.get();
             }
-        }
-
-        public static class Writer extends AsyncTask<Void, Void, Void> implements IPCInterface {
-            private static final String TAG = "BT.Client.Writer";
-            private OutputStream outputStream;
-            private boolean doRun;
-            private List<String> sendData = new ArrayList<>();
-            private WriterInterface writerInterface;
-
-            private boolean readerIsReady = false;
-            private boolean remoteReaderIsReady = false;
-            private boolean sentIsReady = false;
 
             /**
-             * instantiates a writer object
-             * @param outputStream socket outputStream
-             * @param writerInterface writerInterface for ipc
+             * adds a reference, every retain needs a matching release
+             * @return this buffer
              */
-            Writer(OutputStream outputStream, WriterInterface writerInterface){
-                this.outputStream = outputStream;
-                this.writerInterface = writerInterface;
-                doRun = true;
+            public Buffer retain(){
+                while (true){
+                    int c = refCnt.get();
+                    if(c <= 0) throw new IllegalStateException("buffer has already been released");
+                    if(refCnt.compareAndSet(c, c + 1)) return this;
+                }
             }
 
             /**
-             * writes to the socket and flushes directly afterwards
-             * attaches a '\n' to the end of each messages
-             * @param data data to be sent
-             * @return True if there was no exception
+             * drops a reference
+             * @return True if this was the last reference and the buffer went back to the pool
              */
-            private boolean writeFlush(String data){
-                try {
-                    Log.d(TAG, "sending: " + data);
-                    outputStream.write(data.getBytes());
-                    outputStream.write("\n".getBytes());
-                    outputStream.flush();
-                    return true;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return false;
-                }
-            }
-
-            private void run(){
-                while (doRun){
-                    if(!readerIsReady) continue;
-                    if(!remoteReaderIsReady) {
-                        writeFlush(Reader.DATA_IS_READY);
-                        sentIsReady = true;
-                        try {
-                            Thread.sleep(420);
-                        } catch (InterruptedException e){
-                            e.printStackTrace();
-                        }
-                    } else {
-                        if(!sentIsReady) {writeFlush(Reader.DATA_IS_READY); sentIsReady = true;}
-                        for(String s : sendData) doRun = writeFlush(s);
-                        sendData.clear();
-                    }
-                }
-                writerInterface.finished();
+            public boolean release(){
+                int c = refCnt.decrementAndGet();
+                if(c > 0) return false;
+                if(c < 0) throw new IllegalStateException("buffer has been released too often");
+                pool.recycle(this);
+                return true;
             }
+        }
 
-            @Override
-            protected void onCancelled() {
-                super.onCancelled();
-                doRun = false;
+        /**
+         * snapshot of the pool counters
+         */
+        public static class Stats {
+            public final long hits;
+            public final long misses;
+            public final long dropped;
+            public final long leaks;
+            public final int pooledBytes;
+
+            Stats(long hits, long misses, long dropped, long leaks, int pooledBytes){
+                this.hits = hits;
+                this.misses = misses;
+                this.dropped = dropped;
+                this.leaks = leaks;
+                this.pooledBytes = pooledBytes;
             }
 
             @Override
-            protected Void doInBackground(Void... voids) {
-                run();
-                return null;
+            public String toString() {
+                return "hits=" + hits + " misses=" + misses + " dropped=" + dropped + " leaks=" + leaks + " pooledBytes=" + pooledBytes;
             }
+        }
 
-            void addSendData(String data){
-                sendData.add(data);
-            }
+        private static final class LeakTracker extends WeakReference<Buffer> {
+            private final Throwable acquiredAt;
+            private final int capacity;
 
-            void addSendData(List<String> data){
-                sendData.addAll(data);
+            LeakTracker(Buffer buffer, ReferenceQueue<Buffer> queue){
+                super(buffer, queue);
+                acquiredAt = new Throwable("buffer acquired here");
+                capacity = buffer.capacity();
             }
+        }
 
-            void stop(){
-                doRun = false;
-            }
+        private final ArrayDeque<Buffer>[] heap;
+        private final ArrayDeque<Buffer>[] direct;
+        private int maxPooledBytes;
+        private int pooledBytes = 0;
+        private long hits = 0;
+        private long misses = 0;
+        private long dropped = 0;
+        private long leaks = 0;
 
-            @Override
-            public void onMessage(int message) {
-                if(message == Reader.MSG_READER_READY) readerIsReady = true;
-                else if(message == Reader.MSG_REMOTE_READY) remoteReaderIsReady = true;
-                else if(message == Reader.MSG_READER_DEAD) doRun = false;
-            }
+        private volatile boolean leakDetection = false;
+        private final ReferenceQueue<Buffer> leakQueue = new ReferenceQueue<>();
+        private final Set<LeakTracker> trackers = Collections.synchronizedSet(new HashSet<LeakTracker>());
 
-            int getSendDataQueueSize(){
-                return sendData.size();
+        /**
+         * creates a BufferPool instance
+         * @param maxPooledBytes maximum amount of bytes kept in the free lists
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public BufferPool(int maxPooledBytes){
+            this.maxPooledBytes = maxPooledBytes;
+            heap = new ArrayDeque[SIZE_CLASSES.length];
+            direct = new ArrayDeque[SIZE_CLASSES.length];
+            for(int i = 0; i < SIZE_CLASSES.length; i++){
+                heap[i] = new ArrayDeque<>();
+                direct[i] = new ArrayDeque<>();
             }
         }
 
-        private static final String TAG = "BT.Client";
-
-        private BluetoothSocket socket;
+        /**
+         * @return the pool used by clients which did not get one set explicitly
+         */
+        public static BufferPool getDefault() {
+            return defaultPool;
+        }
 
-        private OnDataReceivedInterface onDataReceivedInterface;
+        /**
+         * replaces the default pool
+         * @param pool the new default pool
+         */
+        public static void setDefault(BufferPool pool) {
+            defaultPool = pool;
+        }
 
-        private Reader reader = null;
-        private Writer writer = null;
+        /**
+         * acquires a heap buffer
+         * @param minCapacity minimum capacity of the buffer
+         * @return cleared buffer with a reference count of one
+         */
+        public Buffer acquire(int minCapacity){
+            return acquire(minCapacity, false);
+        }
 
-        private boolean readerFinished = false;
-        private boolean writerFinished = false;
+        /**
+         * acquires a direct buffer
+         * @param minCapacity minimum capacity of the buffer
+         * @return cleared buffer with a reference count of one
+         */
+        public Buffer acquireDirect(int minCapacity){
+            return acquire(minCapacity, true);
+        }
 
-        private ReaderInterface readerInterface = new ReaderInterface() {
-            @Override
-            public void finished() {
-                readerFinished = true;
-                if(writerFinished) onFinished();
+        private Buffer acquire(int minCapacity, boolean isDirect){
+            if(leakDetection) pollLeaks();
+            int sc = sizeClass(minCapacity);
+            Buffer b = null;
+            synchronized (this){
+                if(sc >= 0) b = (isDirect ? direct : heap)[sc].pollLast();
+                if(b != null) {
+                    pooledBytes -= b.capacity();
+                    hits++;
+                } else misses++;
             }
-
-            @Override
-            public void inform(int message) {
-                reader.onMessage(message);
+            if(b == null){
+                int capacity = sc >= 0 ? SIZE_CLASSES[sc] : minCapacity;
+                b = new Buffer(this, isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity), sc);
             }
-        };
-
-        private WriterInterface writerInterface = new WriterInterface() {
-            @Override
-            public void finished() {
-                writerFinished = true;
-                if(readerFinished) onFinished();
+            b.buffer.clear();
+            b.refCnt.set(1);
+            if(leakDetection) {
+                b.tracker = new LeakTracker(b, leakQueue);
+                trackers.add(b.tracker);
             }
+            return b;
+        }
 
-            @Override
-            public void inform(int message) {
-                writer.onMessage(message);
+        private void recycle(Buffer b){
+            if(b.tracker != null){
+                trackers.remove(b.tracker);
+                b.tracker.clear();
+                b.tracker = null;
             }
-        };
+            synchronized (this){
+                if(b.sizeClass < 0 || pooledBytes + b.capacity() > maxPooledBytes) dropped++;
+                else {
+                    (b.isDirect() ? direct : heap)[b.sizeClass].addLast(b);
+                    pooledBytes += b.capacity();
+                }
+            }
+        }
 
-        /**
-         * instantiates a new client object
-         * @param socket the acquired socket
-         * @param onDataReceivedInterface onDataReceiveInterface
-         */
-        public Client(BluetoothSocket socket, OnDataReceivedInterface onDataReceivedInterface){
-            this.socket = socket;
-            this.onDataReceivedInterface = onDataReceivedInterface;
+        private static int sizeClass(int capacity){
+            for(int i = 0; i < SIZE_CLASSES.length; i++) if(capacity <= SIZE_CLASSES[i]) return i;
+            return -1;
         }
 
         /**
-         * checks if the socket is not null and connected
-         * @return True if everything is fine
+         * logs buffers which have been garbage collected without being released
          */
-        private boolean preCheck(){
-            if(socket == null) {
-                Log.e(TAG, "socket is null");
-                return false;
-            }
-            if(socket.isConnected()){
-                Log.d(TAG, "socket is connected");
-            } else {
-                Log.e(TAG, "socket is not connected");
-                return false;
+        private void pollLeaks(){
+            Reference<? extends Buffer> r;
+            while ((r = leakQueue.poll()) != null){
+                LeakTracker t = (LeakTracker) r;
+                if(!trackers.remove(t)) continue;
+                synchronized (this) {leaks++;}
+                Log.e(TAG, "buffer of " + t.capacity + " bytes was garbage collected without being released", t.acquiredAt);
             }
-            return true;
-        }
-
-        @Override
-        public void onExecuted() {
-            Log.d(TAG, "executed reader and writer");
         }
 
         /**
-         * instantiates a reader and writer object and passes input/output stream to them
+         * enables or disables leak detection, disabled by default
+         * the library is always built as release, so pass the flag of the app,
+         * e.g. BufferPool.getDefault().setLeakDetection(BuildConfig.DEBUG)
+         * @param enabled True to track where unreleased buffers have been acquired
          */
-        void run() {
-            if(!preCheck()) return;
-            try {
-                InputStream is = socket.getInputStream();
-                if(is == null) Log.wtf(TAG, "inputstream is null");
-                OutputStream os = socket.getOutputStream();
-                if(os == null) Log.wtf(TAG, "outputstream is null");
-                reader = new Reader(is, onDataReceivedInterface, readerInterface, writerInterface);
-                writer = new Writer(os, writerInterface);
-                onReady();
-                reader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-                writer.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-                onExecuted();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        public void setLeakDetection(boolean enabled){
+            leakDetection = enabled;
         }
 
         /**
-         * stops both reader and writer and closes the socket
+         * sets the memory cap and drops pooled buffers exceeding it
+         * @param maxPooledBytes maximum amount of bytes kept in the free lists
          */
-        public void stop(){
-            if(reader != null) reader.stop();
-            if(writer != null) writer.stop();
-            try {
-                socket.close();
-            } catch (IOException e){
-                e.printStackTrace();
+        public synchronized void setMaxPooledBytes(int maxPooledBytes){
+            this.maxPooledBytes = maxPooledBytes;
+            for(int i = SIZE_CLASSES.length - 1; i >= 0 && pooledBytes > maxPooledBytes; i--){
+                while (pooledBytes > maxPooledBytes && !heap[i].isEmpty()) {heap[i].pollLast(); pooledBytes -= SIZE_CLASSES[i];}
+                while (pooledBytes > maxPooledBytes && !direct[i].isEmpty()) {direct[i].pollLast(); pooledBytes -= SIZE_CLASSES[i];}
             }
         }
 
-        @Override
-        protected Void doInBackground(Void... voids) {
-            run();
-            return null;
+        /**
+         * drops every pooled buffer
+         */
+        public synchronized void trim(){
+            int cap = maxPooledBytes;
+            setMaxPooledBytes(0);
+            setMaxPooledBytes(cap);
         }
 
         /**
-         *
-         * @return length of the writer to-be-send data queue
+         * @return snapshot of hit / miss counters and pooled memory
+         */
+        public Stats getStats(){
+            if(leakDetection) pollLeaks();
+            synchronized (this){
+                return new Stats(hits, misses, dropped, leaks, pooledBytes);
+            }
+        }
+    }
+
+    /**
+     * encodes and decodes one message type into the binary frame payload
+     * type ids below zero are reserved for the library
+     * @param <T> message type
+     */
+    public interface MessageCodec<T> {
+        int getTypeId();
+        void encode(T message, BinaryWriter out);
+        T decode(BinaryReader in);
+    }
+
+    /**
+     * compact big endian writer for primitives, varints, strings and byte arrays
+     * writes straight into a pooled buffer and grows it through the pool if needed
+     */
+    public static class BinaryWriter {
+        static final byte FRAME_MARKER = 0;
+        static final int FRAME_HEADER_RESERVE = 11;
+
+        private static final ThreadLocal<BinaryWriter> cached = new ThreadLocal<BinaryWriter>() {
+            @Override
+            protected BinaryWriter initialValue() {
+                return new BinaryWriter();
+            }
+        };
+
+        private BufferPool pool;
+        private BufferPool.Buffer buffer;
+        private ByteBuffer bb;
+        private int typeId;
+
+        private BinaryWriter(){}
+
+        /**
+         * gets an idle writer of the calling thread
+         * @param pool pool to take the buffers from
+         * @param capacity initial capacity
+         * @param offset bytes to skip at the start of the buffer
+         * @return writer positioned at offset
+         */
+        private static BinaryWriter obtain(BufferPool pool, int capacity, int offset){
+            BinaryWriter w = cached.get();
+            if(w.buffer != null) w = new BinaryWriter();
+            w.pool = pool;
+            w.buffer = pool.acquire(capacity);
+            w.bb = w.buffer.buffer();
+            w.bb.position(offset);
+            return w;
+        }
+
+        /**
+         * starts a frame, the payload is written by the caller and finished with endFrame
+         * @param pool pool to take the buffers from
+         * @param typeId message type id
+         * @return writer for the payload
+         */
+        static BinaryWriter beginFrame(BufferPool pool, int typeId){
+            BinaryWriter w = obtain(pool, BufferPool.SIZE_CLASSES[0], FRAME_HEADER_RESERVE);
+            w.typeId = typeId;
+            return w;
+        }
+
+        /**
+         * writes the frame header in front of the payload
+         * @return buffer with position and limit around the frame, owned by the caller
+         */
+        BufferPool.Buffer endFrame(){
+            int end = bb.position();
+            int length = end - FRAME_HEADER_RESERVE;
+            int zz = zigZag(typeId);
+            int start = FRAME_HEADER_RESERVE - 1 - varIntSize(zz) - varIntSize(length);
+            bb.position(start);
+            bb.put(FRAME_MARKER);
+            writeVarInt(zz);
+            writeVarInt(length);
+            bb.position(start);
+            bb.limit(end);
+            return detach();
+        }
+
+        /**
+         * releases the buffer of an unfinished frame
+         */
+        void abort(){
+            detach().release();
+        }
+
+        private BufferPool.Buffer detach(){
+            BufferPool.Buffer b = buffer;
+            buffer = null;
+            bb = null;
+            pool = null;
+            return b;
+        }
+
+        /**
+         * encodes a typed message into a frame
+         * @param pool pool to take the buffers from
+         * @param codec codec of the message type
+         * @param message message to encode
+         * @return buffer with position and limit around the frame, owned by the caller
+         */
+        static <T> BufferPool.Buffer encodeFrame(BufferPool pool, MessageCodec<T> codec, T message){
+            BinaryWriter w = beginFrame(pool, codec.getTypeId());
+            try {
+                codec.encode(message, w);
+            } catch (RuntimeException e){
+                w.abort();
+                throw e;
+            }
+            return w.endFrame();
+        }
+
+        /**
+         * encodes a text message and its trailing '\n'
+         * @param pool pool to take the buffers from
+         * @param data text to encode
+         * @return buffer with position and limit around the line, owned by the caller
+         */
+        static BufferPool.Buffer encodeLine(BufferPool pool, String data){
+            BinaryWriter w = obtain(pool, utf8Length(data) + 1, 0);
+            w.putUtf8(data);
+            w.bb.put((byte) '\n');
+            w.bb.flip();
+            return w.detach();
+        }
+
+        private void ensure(int bytes){
+            if(bb.remaining() >= bytes) return;
+            int needed = bb.position() + bytes;
+            BufferPool.Buffer grown = pool.acquire(Math.max(needed, bb.capacity() * 2));
+            bb.flip();
+            grown.buffer().put(bb);
+            buffer.release();
+            buffer = grown;
+            bb = grown.buffer();
+        }
+
+        public void writeByte(int v){
+            ensure(1);
+            bb.put((byte) v);
+        }
+
+        public void writeBoolean(boolean v){
+            writeByte(v ? 1 : 0);
+        }
+
+        public void writeShort(int v){
+            ensure(2);
+            bb.putShort((short) v);
+        }
+
+        public void writeInt(int v){
+            ensure(4);
+            bb.putInt(v);
+        }
+
+        public void writeLong(long v){
+            ensure(8);
+            bb.putLong(v);
+        }
+
+        public void writeFloat(float v){
+            ensure(4);
+            bb.putFloat(v);
+        }
+
+        public void writeDouble(double v){
+            ensure(8);
+            bb.putDouble(v);
+        }
+
+        /**
+         * writes an unsigned LEB128 varint, 1 to 5 bytes
+         * @param v value, negative values always take 5 bytes
+         */
+        public void writeVarInt(int v){
+            ensure(5);
+            while ((v & ~0x7F) != 0){
+                bb.put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            bb.put((byte) v);
+        }
+
+        /**
+         * writes an unsigned LEB128 varint, 1 to 10 bytes
+         * @param v value, negative values always take 10 bytes
+         */
+        public void writeVarLong(long v){
+            ensure(10);
+            while ((v & ~0x7FL) != 0){
+                bb.put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            bb.put((byte) v);
+        }
+
+        /**
+         * writes a zigzag encoded varint, small negative values stay small
+         * @param v value
+         */
+        public void writeSignedVarInt(int v){
+            writeVarInt(zigZag(v));
+        }
+
+        /**
+         * writes a zigzag encoded varint, small negative values stay small
+         * @param v value
+         */
+        public void writeSignedVarLong(long v){
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        /**
+         * writes the utf-8 byte length as varint followed by the utf-8 bytes
+         * @param s string, must not be null
+         */
+        public void writeString(String s){
+            int length = utf8Length(s);
+            writeVarInt(length);
+            ensure(length);
+            putUtf8(s);
+        }
+
+        /**
+         * writes the length as varint followed by the bytes
+         * @param b bytes
+         */
+        public void writeBytes(byte[] b){
+            writeBytes(b, 0, b.length);
+        }
+
+        /**
+         * writes the length as varint followed by the bytes
+         * @param b bytes
+         * @param offset offset in b
+         * @param length amount of bytes
+         */
+        public void writeBytes(byte[] b, int offset, int length){
+            writeVarInt(length);
+            writeRawBytes(b, offset, length);
+        }
+
+        /**
+         * writes the bytes without a length prefix
+         * @param b bytes
+         * @param offset offset in b
+         * @param length amount of bytes
+         */
+        public void writeRawBytes(byte[] b, int offset, int length){
+            ensure(length);
+            bb.put(b, offset, length);
+        }
+
+        /**
+         * writes the bytes between position and limit of src without a length prefix
+         * @param src bytes, its position is not modified
+         */
+        public void writeRawBytes(ByteBuffer src){
+            int length = src.remaining();
+            ensure(length);
+            if(src.hasArray()) bb.put(src.array(), src.arrayOffset() + src.position(), length);
+            else for(int i = src.position(); i < src.limit(); i++) bb.put(src.get(i));
+        }
+
+        /**
+         * @return amount of bytes written so far
+         */
+        public int size(){
+            return bb.position();
+        }
+
+        static int zigZag(int v){
+            return (v << 1) ^ (v >> 31);
+        }
+
+        static int varIntSize(int v){
+            int size = 1;
+            while ((v & ~0x7F) != 0) {size++; v >>>= 7;}
+            return size;
+        }
+
+        /**
+         * @param s string
+         * @return utf-8 length, unpaired surrogates count as one '?'
+         */
+        static int utf8Length(String s){
+            int n = 0;
+            int len = s.length();
+            for(int i = 0; i < len; i++){
+                char c = s.charAt(i);
+                if(c < 0x80) n++;
+                else if(c < 0x800) n += 2;
+                else if(c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) n += 3;
+                else if(Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {n += 4; i++;}
+                else n++;
+            }
+            return n;
+        }
+
+        private void putUtf8(String s){
+            int len = s.length();
+            for(int i = 0; i < len; i++){
+                char c = s.charAt(i);
+                if(c < 0x80) bb.put((byte) c);
+                else if(c < 0x800){
+                    bb.put((byte) (0xC0 | (c >> 6)));
+                    bb.put((byte) (0x80 | (c & 0x3F)));
+                } else if(c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE){
+                    bb.put((byte) (0xE0 | (c >> 12)));
+                    bb.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    bb.put((byte) (0x80 | (c & 0x3F)));
+                } else if(Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))){
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    bb.put((byte) (0xF0 | (cp >> 18)));
+                    bb.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    bb.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    bb.put((byte) (0x80 | (cp & 0x3F)));
+                } else bb.put((byte) '?');
+            }
+        }
+    }
+
+    /**
+     * reads what the BinaryWriter wrote, bounded by the position and limit of the wrapped buffer
+     */
+    public static class BinaryReader {
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        private ByteBuffer bb;
+
+        BinaryReader(){}
+
+        /**
+         * @param bb buffer to read from, position and limit are used as bounds
+         */
+        public BinaryReader(ByteBuffer bb){
+            this.bb = bb;
+        }
+
+        void wrap(ByteBuffer bb){
+            this.bb = bb;
+        }
+
+        public int readByte(){
+            return bb.get();
+        }
+
+        public boolean readBoolean(){
+            return bb.get() != 0;
+        }
+
+        public short readShort(){
+            return bb.getShort();
+        }
+
+        public int readInt(){
+            return bb.getInt();
+        }
+
+        public long readLong(){
+            return bb.getLong();
+        }
+
+        public float readFloat(){
+            return bb.getFloat();
+        }
+
+        public double readDouble(){
+            return bb.getDouble();
+        }
+
+        public int readVarInt(){
+            int v = 0;
+            for(int shift = 0; shift < 35; shift += 7){
+                int b = bb.get();
+                v |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0) return v;
+            }
+            throw new IllegalStateException("malformed varint");
+        }
+
+        public long readVarLong(){
+            long v = 0;
+            for(int shift = 0; shift < 70; shift += 7){
+                long b = bb.get();
+                v |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0) return v;
+            }
+            throw new IllegalStateException("malformed varint");
+        }
+
+        public int readSignedVarInt(){
+            int v = readVarInt();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        public long readSignedVarLong(){
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /**
+         * reads a varint length prefix
+         * @return length which fits the remaining bytes
+         */
+        private int readLength(){
+            int length = readVarInt();
+            if(length < 0) throw new IllegalStateException("negative length " + length);
+            if(length > bb.remaining()) throw new BufferUnderflowException();
+            return length;
+        }
+
+        public String readString(){
+            int length = readLength();
+            String s;
+            if(bb.hasArray()) s = new String(bb.array(), bb.arrayOffset() + bb.position(), length, UTF_8);
+            else {
+                byte[] b = new byte[length];
+                bb.get(b);
+                return new String(b, UTF_8);
+            }
+            bb.position(bb.position() + length);
+            return s;
+        }
+
+        public byte[] readBytes(){
+            int length = readLength();
+            byte[] b = new byte[length];
+            bb.get(b);
+            return b;
+        }
+
+        /**
+         * reads bytes without a length prefix
+         * @param b destination
+         * @param offset offset in b
+         * @param length amount of bytes
+         */
+        public void readRawBytes(byte[] b, int offset, int length){
+            bb.get(b, offset, length);
+        }
+
+        /**
+         * @return amount of bytes left
+         */
+        public int remaining(){
+            return bb.remaining();
+        }
+    }
+
+    interface ClientInterface {
+        void onReady();
+        void onExecuted();
+        void onFinished();
+    }
+
+    interface ReaderInterface {
+        void inform(int message);
+        void finished();
+        void onControl(int typeId, BinaryReader in);
+        void onRecordsDelivered(long seq);
+    }
+
+    interface WriterInterface {
+        void inform(int message);
+        void finished();
+        void onWritten();
+    }
+
+    interface IPCInterface {
+        void onMessage(int message);
+    }
+
+    interface SendInterface {
+        BufferPool getBufferPool();
+        boolean enqueue(BufferPool.Buffer frame);
+    }
+
+    public interface OnDataReceivedInterface {
+        void onReceived(String data);
+    }
+
+    public interface OnMessageReceivedInterface<T> {
+        void onReceived(T message);
+    }
+
+    /**
+     * what a client writer does if its send queue is full
+     */
+    public enum BackpressurePolicy {
+        UNBOUNDED,
+        DROP_NEWEST,
+        DROP_OLDEST,
+        DISCONNECT
+    }
+
+    @SuppressLint("StaticFieldLeak")
+    public static abstract class Client extends AsyncTask<Void, Void, Void> implements ClientInterface {
+
+        public static class Reader extends AsyncTask<Void, Void, Void> implements IPCInterface {
+            private static final String TAG = "BT.Client.Reader";
+            private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+            static final String DATA_IS_READY = "READY";
+            static final int MSG_READER_DEAD = -1;
+            static final int MSG_READER_READY = 0;
+            static final int MSG_REMOTE_READY = 1;
+
+            static final int READ_BUFFER_SIZE = 1024;
+            static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+            private InputStream inputStream;
+            private BufferPool bufferPool;
+            private boolean doRun;
+            private OnDataReceivedInterface onDataReceivedInterface;
+            private SparseArray<Registration<?>> codecs;
+            private BinaryReader binaryReader = new BinaryReader();
+            private int varInt;
+            private long deliveredRecord = 0;
+            private long ackedRecord = 0;
+
+            private ReaderInterface readerInterface;
+            private WriterInterface writerInterface;
+            private int session;
+
+            /**
+             * instantiates a Reader object
+             * @param inputStream socket input stream
+             * @param onDataReceivedInterface onDataReceivedInterface
+             * @param codecs registered codecs by type id
+             * @param readerInterface readerInterface for ipc
+             * @param writerInterface writerInterface for ipc
+             * @param bufferPool pool the read buffer is taken from
+             * @param session id of the client for tracing
+             */
+            Reader(InputStream inputStream, OnDataReceivedInterface onDataReceivedInterface, SparseArray<Registration<?>> codecs, ReaderInterface readerInterface, WriterInterface writerInterface, BufferPool bufferPool, int session){
+                this.inputStream = inputStream;
+                this.session = session;
+                this.bufferPool = bufferPool;
+                this.onDataReceivedInterface = onDataReceivedInterface;
+                this.codecs = codecs;
+                this.readerInterface = readerInterface;
+                this.writerInterface = writerInterface;
+                doRun = true;
+            }
+
+            private void run(){
+                BufferPool.Buffer readBuffer = bufferPool.acquire(READ_BUFFER_SIZE);
+                int filled = 0;
+                int scanned = 0;
+                writerInterface.inform(MSG_READER_READY);
+                try {
+                    while (doRun){
+                        if(filled == readBuffer.capacity()) readBuffer = grow(readBuffer, filled);
+                        byte[] buffer = readBuffer.array();
+                        int bytes = inputStream.read(buffer, filled, buffer.length - filled);
+                        if(bytes < 0) throw new IOException("end of stream");
+                        trace(Tracer.READ, session, bytes);
+                        filled += bytes;
+                        int consumed = parse(readBuffer.buffer(), 0, filled, scanned);
+                        System.arraycopy(buffer, consumed, buffer, 0, filled - consumed);
+                        filled -= consumed;
+                        scanned = filled;
+                        if(deliveredRecord > ackedRecord) {
+                            ackedRecord = deliveredRecord;
+                            readerInterface.onRecordsDelivered(ackedRecord);
+                        }
+                    }
+                } catch (IOException | RuntimeException e){
+                    e.printStackTrace();
+                    doRun = false;
+                    writerInterface.inform(MSG_READER_DEAD);
+                } finally {
+                    readBuffer.release();
+                    readerInterface.finished();
+                }
+            }
+
+            /**
+             * moves a message which does not fit the read buffer into a bigger one
+             * @param readBuffer full read buffer
+             * @param filled amount of bytes in the read buffer
+             * @return buffer of twice the size
+             * @throws IOException if the message exceeds MAX_FRAME_SIZE
+             */
+            private BufferPool.Buffer grow(BufferPool.Buffer readBuffer, int filled) throws IOException {
+                if(readBuffer.capacity() >= MAX_FRAME_SIZE) throw new IOException("message exceeds " + MAX_FRAME_SIZE + " bytes");
+                BufferPool.Buffer grown = bufferPool.acquire(readBuffer.capacity() * 2);
+                System.arraycopy(readBuffer.array(), 0, grown.array(), 0, filled);
+                readBuffer.release();
+                return grown;
+            }
+
+            /**
+             * delivers every complete line and frame
+             * @param bb read buffer
+             * @param start index of the first byte
+             * @param end index behind the last byte
+             * @return index behind the last consumed byte
+             * @throws IOException on a malformed frame header
+             */
+            private int parse(ByteBuffer bb, int start, int end) throws IOException {
+                return parse(bb, start, end, 0);
+            }
+
+            /**
+             * delivers every complete line and frame
+             * @param bb read buffer
+             * @param start index of the first byte
+             * @param end index behind the last byte
+             * @param scanned bytes behind start which are known to contain no newline, so a long line is scanned only once
+             * @return index behind the last consumed byte
+             * @throws IOException on a malformed frame header
+             */
+            private int parse(ByteBuffer bb, int start, int end, int scanned) throws IOException {
+                byte[] a = bb.array();
+                int i = start;
+                while (i < end){
+                    if(a[i] == BinaryWriter.FRAME_MARKER){
+                        int p = readVarInt(a, i + 1, end);
+                        if(p < 0) break;
+                        int typeId = (varInt >>> 1) ^ -(varInt & 1);
+                        p = readVarInt(a, p, end);
+                        if(p < 0) break;
+                        int length = varInt;
+                        if(length < 0 || length > MAX_FRAME_SIZE) throw new IOException("invalid frame length " + length);
+                        if(p + length > end) break;
+                        bb.limit(p + length);
+                        bb.position(p);
+                        if(typeId == Journal.TYPE_RECORD) deliverRecord(bb);
+                        else {
+                            trace(Tracer.DELIVER, session, length);
+                            deliver(typeId, bb);
+                        }
+                        bb.clear();
+                        i = p + length;
+                    } else {
+                        int nl = Math.max(i, start + scanned);
+                        while (nl < end && a[nl] != '\n') nl++;
+                        if(nl == end) break;
+                        if(nl > i) {
+                            trace(Tracer.DELIVER, session, nl - i);
+                            deliver(new String(a, i, nl - i, UTF_8));
+                        }
+                        i = nl + 1;
+                    }
+                }
+                return i;
+            }
+
+            /**
+             * reads a varint into the varInt field
+             * @return index behind the varint or -1 if it is incomplete
+             * @throws IOException if the varint is longer than 5 bytes
+             */
+            private int readVarInt(byte[] a, int i, int end) throws IOException {
+                varInt = 0;
+                for(int shift = 0; shift < 35; shift += 7){
+                    if(i >= end) return -1;
+                    byte b = a[i++];
+                    varInt |= (b & 0x7F) << shift;
+                    if((b & 0x80) == 0) return i;
+                }
+                throw new IOException("malformed varint");
+            }
+
+            private void deliver(String line){
+                if(line.equals(DATA_IS_READY)) writerInterface.inform(MSG_REMOTE_READY);
+                else onDataReceivedInterface.onReceived(line);
+            }
+
+            /**
+             * delivers the line or frame wrapped in a journal record
+             * the first record of a connection sets the base, afterwards only the next sequence number is accepted
+             * repeated records are skipped and nothing behind a gap is delivered, so the cumulative ack never skips a record
+             * the record is acknowledged once the current read has been parsed
+             * @param payload record payload
+             * @throws IOException on a malformed frame header
+             */
+            private void deliverRecord(ByteBuffer payload) throws IOException {
+                binaryReader.wrap(payload);
+                long seq;
+                try {
+                    seq = binaryReader.readVarLong();
+                } catch (BufferUnderflowException | IllegalStateException e){
+                    Log.e(TAG, "malformed journal record", e);
+                    return;
+                }
+                if(seq <= deliveredRecord) return;
+                if(deliveredRecord != 0 && seq != deliveredRecord + 1) {
+                    Log.e(TAG, "journal record " + seq + " skipped, expected " + (deliveredRecord + 1));
+                    return;
+                }
+                int end = payload.limit();
+                if(parse(payload, payload.position(), end) != end) Log.e(TAG, "incomplete journal record " + seq);
+                deliveredRecord = seq;
+            }
+
+            /**
+             * delivers a line or frame which did not come straight from the stream
+             * @param payload buffer with position and limit around the line or frame
+             */
+            void deliverPayload(ByteBuffer payload){
+                try {
+                    if(parse(payload, payload.position(), payload.limit()) != payload.limit()) Log.e(TAG, "incomplete payload");
+                } catch (IOException e){
+                    Log.e(TAG, "malformed payload", e);
+                }
+            }
+
+            private void deliver(int typeId, ByteBuffer payload){
+                binaryReader.wrap(payload);
+                try {
+                    if(typeId < 0) readerInterface.onControl(typeId, binaryReader);
+                    else {
+                        Registration<?> r = codecs.get(typeId);
+                        if(r == null) Log.w(TAG, "no codec registered for type " + typeId);
+                        else r.deliver(binaryReader);
+                    }
+                } catch (RuntimeException e){
+                    Log.e(TAG, "could not handle message of type " + typeId, e);
+                }
+            }
+
+            @Override
+            protected void onCancelled() {
+                super.onCancelled();
+                doRun = false;
+            }
+
+            @Override
+            protected Void doInBackground(Void... voids) {
+                run();
+                return null;
+            }
+
+            void stop(){
+                doRun = false;
+            }
+
+            @Override
+            public void onMessage(int message) {
+
+            }
+        }
+
+        public static class Writer extends AsyncTask<Void, Void, Void> implements IPCInterface {
+            private static final String TAG = "BT.Client.Writer";
+            private static final int IDLE_WAIT_MS = 100;
+            private OutputStream outputStream;
+            private BufferPool bufferPool;
+            private boolean doRun;
+            private final ArrayDeque<BufferPool.Buffer> sendData = new ArrayDeque<>();
+            private final Set<BufferPool.Buffer> pinned = new HashSet<>();
+            private boolean closed = false;
+            private int queuedBytes = 0;
+            private BackpressurePolicy backpressurePolicy = BackpressurePolicy.UNBOUNDED;
+            private int maxQueuedBytes = 0;
+            private long dropped = 0;
+            private boolean overflowed = false;
+            private WriterInterface writerInterface;
+            private int session;
+
+            private boolean readerIsReady = false;
+            private boolean remoteReaderIsReady = false;
+            private boolean sentIsReady = false;
+
+            /**
+             * instantiates a writer object
+             * @param outputStream socket outputStream
+             * @param writerInterface writerInterface for ipc
+             * @param bufferPool pool the message buffers are taken from
+             * @param session id of the client for tracing
+             */
+            Writer(OutputStream outputStream, WriterInterface writerInterface, BufferPool bufferPool, int session){
+                this.outputStream = outputStream;
+                this.session = session;
+                this.bufferPool = bufferPool;
+                this.writerInterface = writerInterface;
+                doRun = true;
+            }
+
+            /**
+             * writes to the socket and flushes directly afterwards
+             * attaches a '\n' to the end of each messages
+             * @param data data to be sent
+             * @return True if there was no exception
+             */
+            private boolean writeFlush(String data){
+                BufferPool.Buffer line = BinaryWriter.encodeLine(bufferPool, data);
+                try {
+                    write(line);
+                    outputStream.flush();
+                    return true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                } finally {
+                    line.release();
+                }
+            }
+
+            /**
+             * writes the bytes between position and limit without modifying the buffer
+             * @param frame encoded line or frame
+             * @throws IOException if the socket is gone
+             */
+            private void write(BufferPool.Buffer frame) throws IOException {
+                ByteBuffer bb = frame.buffer();
+                trace(Tracer.WRITE, session, bb.remaining());
+                outputStream.write(frame.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+            }
+
+            /**
+             * writes every queued frame and flushes once afterwards
+             * waits up to IDLE_WAIT_MS if the queue is empty
+             * @return True if there was no exception
+             */
+            private boolean writeQueued(){
+                BufferPool.Buffer frame = take();
+                if(frame == null) return true;
+                long bytes = 0;
+                try {
+                    do {
+                        try {
+                            bytes += frame.buffer().remaining();
+                            write(frame);
+                        } finally {
+                            frame.release();
+                        }
+                    } while ((frame = poll()) != null);
+                    outputStream.flush();
+                    trace(Tracer.FLUSH, session, bytes);
+                    return true;
+                } catch (IOException e){
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+
+            private BufferPool.Buffer take(){
+                synchronized (sendData){
+                    if(sendData.isEmpty()){
+                        try {
+                            sendData.wait(IDLE_WAIT_MS);
+                        } catch (InterruptedException e){
+                            e.printStackTrace();
+                        }
+                    }
+                    return poll();
+                }
+            }
+
+            private BufferPool.Buffer poll(){
+                synchronized (sendData){
+                    BufferPool.Buffer frame = sendData.pollFirst();
+                    if(frame != null) {
+                        queuedBytes -= frame.buffer().remaining();
+                        if(!pinned.isEmpty()) pinned.remove(frame);
+                    }
+                    return frame;
+                }
+            }
+
+            private void run(){
+                while (doRun){
+                    if(!readerIsReady) continue;
+                    if(!remoteReaderIsReady) {
+                        writeFlush(Reader.DATA_IS_READY);
+                        sentIsReady = true;
+                        try {
+                            Thread.sleep(420);
+                        } catch (InterruptedException e){
+                            e.printStackTrace();
+                        }
+                    } else {
+                        if(!sentIsReady) {writeFlush(Reader.DATA_IS_READY); sentIsReady = true;}
+                        if(!writeQueued()) doRun = false;
+                        else writerInterface.onWritten();
+                    }
+                }
+                close();
+                writerInterface.finished();
+            }
+
+            /**
+             * releases everything that has not been sent and refuses further frames
+             */
+            private void close(){
+                synchronized (sendData){
+                    closed = true;
+                    BufferPool.Buffer frame;
+                    while ((frame = poll()) != null) frame.release();
+                }
+            }
+
+            @Override
+            protected void onCancelled() {
+                super.onCancelled();
+                doRun = false;
+            }
+
+            @Override
+            protected Void doInBackground(Void... voids) {
+                run();
+                return null;
+            }
+
+            /**
+             * queues an encoded line or frame, the writer takes over the reference
+             * the frame is only read, so the same frame can be queued on several writers
+             * @param frame buffer with position and limit around the bytes to send
+             * @return False if the frame has been dropped and released
+             */
+            boolean enqueue(BufferPool.Buffer frame){
+                return enqueue(frame, true);
+            }
+
+            /**
+             * queues an encoded line or frame, the writer takes over the reference
+             * frames which are not droppable are always queued and never evicted by the backpressure policy
+             * @param frame buffer with position and limit around the bytes to send
+             * @param droppable False for frames which must not get lost, e.g. journal records
+             * @return False if the frame has been dropped and released
+             */
+            boolean enqueue(BufferPool.Buffer frame, boolean droppable){
+                int size = frame.buffer().remaining();
+                synchronized (sendData){
+                    if(closed) {
+                        frame.release();
+                        return false;
+                    }
+                    if(droppable && backpressurePolicy != BackpressurePolicy.UNBOUNDED && !sendData.isEmpty() && queuedBytes + size > maxQueuedBytes){
+                        switch (backpressurePolicy){
+                            case DROP_OLDEST:
+                                Iterator<BufferPool.Buffer> it = sendData.iterator();
+                                while (queuedBytes + size > maxQueuedBytes && it.hasNext()) {
+                                    BufferPool.Buffer oldest = it.next();
+                                    if(pinned.contains(oldest)) continue;
+                                    it.remove();
+                                    queuedBytes -= oldest.buffer().remaining();
+                                    oldest.release();
+                                    dropped++;
+                                }
+                                break;
+                            case DISCONNECT:
+                                overflowed = true;
+                                doRun = false;
+                                frame.release();
+                                dropped++;
+                                return false;
+                            default:
+                                frame.release();
+                                dropped++;
+                                return false;
+                        }
+                    }
+                    sendData.addLast(frame);
+                    if(!droppable) pinned.add(frame);
+                    queuedBytes += size;
+                    sendData.notify();
+                    return true;
+                }
+            }
+
+            /**
+             * sets what happens if the queue is full
+             * @param policy backpressure policy
+             * @param maxQueuedBytes bytes which may be queued, ignored for UNBOUNDED
+             */
+            void setBackpressure(BackpressurePolicy policy, int maxQueuedBytes){
+                synchronized (sendData){
+                    this.backpressurePolicy = policy;
+                    this.maxQueuedBytes = maxQueuedBytes;
+                }
+            }
+
+            boolean isClosed(){
+                synchronized (sendData){
+                    return closed;
+                }
+            }
+
+            boolean isOverflowed(){
+                synchronized (sendData){
+                    return overflowed;
+                }
+            }
+
+            long getDroppedCount(){
+                synchronized (sendData){
+                    return dropped;
+                }
+            }
+
+            void stop(){
+                doRun = false;
+            }
+
+            @Override
+            public void onMessage(int message) {
+                if(message == Reader.MSG_READER_READY) readerIsReady = true;
+                else if(message == Reader.MSG_REMOTE_READY && !remoteReaderIsReady) {
+                    remoteReaderIsReady = true;
+                    trace(Tracer.HANDSHAKE, session, 0);
+                }
+                else if(message == Reader.MSG_READER_DEAD) doRun = false;
+            }
+
+            int getSendDataQueueSize(){
+                synchronized (sendData){
+                    return sendData.size();
+                }
+            }
+
+            int getQueuedBytes(){
+                synchronized (sendData){
+                    return queuedBytes;
+                }
+            }
+        }
+
+        /**
+         * binds a listener to the codec of its message type
+         */
+        static final class Registration<T> {
+            private final MessageCodec<T> codec;
+            private final OnMessageReceivedInterface<T> onMessageReceivedInterface;
+
+            Registration(MessageCodec<T> codec, OnMessageReceivedInterface<T> onMessageReceivedInterface){
+                this.codec = codec;
+                this.onMessageReceivedInterface = onMessageReceivedInterface;
+            }
+
+            void deliver(BinaryReader in){
+                onMessageReceivedInterface.onReceived(codec.decode(in));
+            }
+        }
+
+        private static final String TAG = "BT.Client";
+        private static final AtomicInteger sessions = new AtomicInteger();
+
+        private final int session = sessions.incrementAndGet();
+
+        private BluetoothSocket socket;
+
+        private OnDataReceivedInterface onDataReceivedInterface;
+
+        private SparseArray<Registration<?>> codecs = new SparseArray<>();
+
+        private BufferPool bufferPool = BufferPool.getDefault();
+
+        private BackpressurePolicy backpressurePolicy = BackpressurePolicy.UNBOUNDED;
+        private int maxQueuedBytes = 0;
+
+        private Journal journal = null;
+        private DeltaSync deltaSync = null;
+
+        private Reader reader = null;
+        private Writer writer = null;
+
+        private boolean readerFinished = false;
+        private boolean writerFinished = false;
+
+        private ReaderInterface readerInterface = new ReaderInterface() {
+            @Override
+            public void finished() {
+                readerFinished = true;
+                if(writerFinished) finish();
+            }
+
+            @Override
+            public void inform(int message) {
+                reader.onMessage(message);
+            }
+
+            @Override
+            public void onControl(int typeId, BinaryReader in) {
+                if(typeId == Journal.TYPE_ACK) {
+                    long seq = in.readVarLong();
+                    if(journal != null) journal.acknowledge(seq);
+                } else if(DeltaSync.handles(typeId) && deltaSync != null) {
+                    BufferPool.Buffer rebuilt = deltaSync.onControl(sendInterface, typeId, in);
+                    if(rebuilt != null) {
+                        reader.deliverPayload(rebuilt.buffer());
+                        rebuilt.release();
+                    }
+                }
+                else Log.w(TAG, "unknown control frame " + typeId);
+            }
+
+            @Override
+            public void onRecordsDelivered(long seq) {
+                BinaryWriter w = BinaryWriter.beginFrame(bufferPool, Journal.TYPE_ACK);
+                w.writeVarLong(seq);
+                enqueue(w.endFrame(), false);
+            }
+        };
+
+        private WriterInterface writerInterface = new WriterInterface() {
+            @Override
+            public void finished() {
+                if(journal != null) journal.detach(Client.this);
+                if(deltaSync != null) deltaSync.reset();
+                writerFinished = true;
+                if(readerFinished) finish();
+            }
+
+            @Override
+            public void inform(int message) {
+                writer.onMessage(message);
+            }
+
+            @Override
+            public void onWritten() {
+                if(journal != null) journal.drain(Client.this);
+            }
+        };
+
+        private SendInterface sendInterface = new SendInterface() {
+            @Override
+            public BufferPool getBufferPool() {
+                return bufferPool;
+            }
+
+            @Override
+            public boolean enqueue(BufferPool.Buffer frame) {
+                return Client.this.enqueue(frame, false);
+            }
+        };
+
+        /**
+         * instantiates a new client object
+         * @param socket the acquired socket
+         * @param onDataReceivedInterface onDataReceiveInterface
+         */
+        public Client(BluetoothSocket socket, OnDataReceivedInterface onDataReceivedInterface){
+            this.socket = socket;
+            this.onDataReceivedInterface = onDataReceivedInterface;
+        }
+
+        private void finish(){
+            trace(Tracer.DISCONNECT, session, 0);
+            onFinished();
+        }
+
+        /**
+         * checks if the socket is not null and connected
+         * @return True if everything is fine
+         */
+        private boolean preCheck(){
+            if(socket == null) {
+                Log.e(TAG, "socket is null");
+                return false;
+            }
+            if(socket.isConnected()){
+                trace(Tracer.CONNECT, session, 0);
+            } else {
+                Log.e(TAG, "socket is not connected");
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void onExecuted() {
+            if(BuildConfig.DEBUG) Log.d(TAG, "executed reader and writer");
+        }
+
+        /**
+         * instantiates a reader and writer object and passes input/output stream to them
+         */
+        void run() {
+            if(!preCheck()) return;
+            try {
+                InputStream is = socket.getInputStream();
+                if(is == null) Log.wtf(TAG, "inputstream is null");
+                OutputStream os = socket.getOutputStream();
+                if(os == null) Log.wtf(TAG, "outputstream is null");
+                reader = new Reader(is, onDataReceivedInterface, codecs, readerInterface, writerInterface, bufferPool, session);
+                writer = new Writer(os, writerInterface, bufferPool, session);
+                writer.setBackpressure(backpressurePolicy, maxQueuedBytes);
+                if(journal != null) journal.attach(this);
+                onReady();
+                reader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                writer.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                onExecuted();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * stops both reader and writer and closes the socket
+         */
+        public void stop(){
+            if(reader != null) reader.stop();
+            if(writer != null) writer.stop();
+            try {
+                socket.close();
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        protected Void doInBackground(Void... voids) {
+            run();
+            return null;
+        }
+
+        /**
+         * registers the codec and listener of a message type, has to be called before execute
+         * @param codec codec of the message type
+         * @param onMessageReceivedInterface called for each received message of that type
+         */
+        public <T> void registerCodec(MessageCodec<T> codec, OnMessageReceivedInterface<T> onMessageReceivedInterface){
+            if(codec.getTypeId() < 0) throw new IllegalArgumentException("type ids below zero are reserved");
+            codecs.put(codec.getTypeId(), new Registration<>(codec, onMessageReceivedInterface));
+        }
+
+        /**
+         * @return id of this client in trace events
+         */
+        public int getSession() {
+            return session;
+        }
+
+        /**
+         * sets the pool used by the reader and writer, has to be called before execute
+         * @param bufferPool pool to take buffers from
+         */
+        public void setBufferPool(BufferPool bufferPool) {
+            this.bufferPool = bufferPool;
+        }
+
+        /**
+         * @return the pool used by the reader and writer
+         */
+        public BufferPool getBufferPool() {
+            return bufferPool;
+        }
+
+        /**
+         * sets the journal which persists everything passed to addSendData and send
+         * unacknowledged records are sent as soon as the connection is established, has to be called before execute
+         * journaled messages are never dropped by the backpressure policy, the journal holds them back instead
+         * messages larger than the segment size minus the record header are not persisted but sent directly
+         * if no connection is established they are dropped
+         * @param journal journal of the remote device
+         */
+        public void setJournal(Journal journal) {
+            this.journal = journal;
+        }
+
+        /**
+         * @return the journal or null
+         */
+        public Journal getJournal() {
+            return journal;
+        }
+
+        /**
+         * sets the delta sync stage used by sendDelta and for receiving delta transfers
+         * the same instance should be reused for every connection to the same remote device
+         * @param deltaSync delta sync state of the remote device
+         */
+        public void setDeltaSync(DeltaSync deltaSync) {
+            this.deltaSync = deltaSync;
+        }
+
+        /**
+         * @return the delta sync stage or null
+         */
+        public DeltaSync getDeltaSync() {
+            return deltaSync;
+        }
+
+        /**
+         * sets what happens if more than maxQueuedBytes are waiting to be sent
+         * the policy does not apply to messages passed through the journal or the delta sync stage
+         * @param policy backpressure policy, UNBOUNDED by default
+         * @param maxQueuedBytes bytes which may be queued, ignored for UNBOUNDED
+         */
+        public void setBackpressure(BackpressurePolicy policy, int maxQueuedBytes){
+            this.backpressurePolicy = policy;
+            this.maxQueuedBytes = maxQueuedBytes;
+            if(writer != null) writer.setBackpressure(policy, maxQueuedBytes);
+        }
+
+        /**
+         * @return amount of messages dropped by the backpressure policy
+         */
+        public long getDroppedCount(){
+            return writer == null ? 0 : writer.getDroppedCount();
+        }
+
+        /**
+         * @return bytes waiting in the writer to-be-send data queue
+         */
+        public int getQueuedBytes(){
+            return writer == null ? 0 : writer.getQueuedBytes();
+        }
+
+        /**
+         * @return True if the writer is running and accepts data
+         */
+        public boolean isRunning(){
+            return writer != null && !writer.isClosed();
+        }
+
+        /**
+         * @return True if the writer has been started and is closed by now
+         */
+        public boolean isFinished(){
+            return writer != null && writer.isClosed();
+        }
+
+        /**
+         * queues an encoded frame and applies the backpressure policy
+         * the client takes over the reference of the frame
+         * @param frame buffer with position and limit around the bytes to send
+         * @return True if the frame has been queued
+         */
+        boolean enqueue(BufferPool.Buffer frame){
+            return enqueue(frame, true);
+        }
+
+        /**
+         * queues an encoded frame, frames which are not droppable bypass the backpressure policy
+         * the client takes over the reference of the frame
+         * @param frame buffer with position and limit around the bytes to send
+         * @param droppable False for frames which must not get lost, e.g. journal records
+         * @return True if the frame has been queued
+         */
+        boolean enqueue(BufferPool.Buffer frame, boolean droppable){
+            trace(Tracer.ENQUEUE, session, frame.buffer().remaining());
+            if(writer == null) {
+                frame.release();
+                return false;
+            }
+            if(writer.enqueue(frame, droppable)) return true;
+            if(writer.isOverflowed()) {
+                Log.w(TAG, "send queue overflowed, disconnecting");
+                stop();
+            }
+            return false;
+        }
+
+        /**
+         *
+         * @return length of the writer to-be-send data queue
          */
         public int getSendDataQueueSize(){return writer.getSendDataQueueSize();}
 
         /**
-         * adds data to the to-be-send ata queue
-         * @param data data to add
+         * adds data to the to-be-send ata queue
+         * @param data data to add
+         */
+        protected void addSendData(String data){
+            submit(BinaryWriter.encodeLine(bufferPool, data));
+        }
+
+        /**
+         * adds data to the to-be-send ata queue
+         * @param data data to add
+         */
+        protected void addSendData(List<String> data){
+            for(String s : data) addSendData(s);
+        }
+
+        /**
+         * encodes a typed message into a frame and adds it to the to-be-send data queue
+         * @param codec codec of the message type
+         * @param message message to send
+         */
+        protected <T> void send(MessageCodec<T> codec, T message){
+            submit(BinaryWriter.encodeFrame(bufferPool, codec, message));
+        }
+
+        /**
+         * sends a text message through the delta sync stage, falls back to addSendData without one
+         * delta transfers are not persisted in the journal and are not dropped by the backpressure policy
+         * a transfer which is still open when the connection ends is lost
+         * @param data data to send
+         */
+        protected void sendDelta(String data){
+            if(deltaSync == null) addSendData(data);
+            else deltaSync.send(sendInterface, BinaryWriter.encodeLine(bufferPool, data));
+        }
+
+        /**
+         * sends a typed message through the delta sync stage, falls back to send without one
+         * delta transfers are not persisted in the journal and are not dropped by the backpressure policy
+         * @param codec codec of the message type
+         * @param message message to send
+         */
+        protected <T> void sendDelta(MessageCodec<T> codec, T message){
+            if(deltaSync == null) send(codec, message);
+            else deltaSync.send(sendInterface, BinaryWriter.encodeFrame(bufferPool, codec, message));
+        }
+
+        /**
+         * passes the frame through the journal if one is set
+         * @param frame encoded line or frame, the reference is taken over
+         */
+        private void submit(BufferPool.Buffer frame){
+            if(journal != null) journal.send(frame);
+            else enqueue(frame);
+        }
+    }
+
+    /**
+     * sends the same data to a set of clients
+     * every message is encoded once and the frame is shared read-only by all send queues
+     * each client applies its own backpressure policy, so a slow peer does not stall the others
+     */
+    public static class BroadcastGroup {
+        private static final String TAG = "BT.BroadcastGroup";
+
+        private final List<Client> clients = new CopyOnWriteArrayList<>();
+        private BufferPool bufferPool;
+
+        public BroadcastGroup(){
+            this(BufferPool.getDefault());
+        }
+
+        /**
+         * @param bufferPool pool the frames are encoded into
+         */
+        public BroadcastGroup(BufferPool bufferPool){
+            this.bufferPool = bufferPool;
+        }
+
+        /**
+         * @param client client to add
          */
-        protected void addSendData(String data){
-            writer.addSendData(data);
+        public void add(Client client){
+            if(!clients.contains(client)) clients.add(client);
         }
 
         /**
-         * adds data to the to-be-send ata queue
-         * @param data data to add
+         * @param client client to remove
          */
-        protected void addSendData(List<String> data){
-            writer.addSendData(data);
+        public void remove(Client client){
+            clients.remove(client);
+        }
+
+        /**
+         * @return the clients of this group
+         */
+        public List<Client> getClients(){
+            return clients;
+        }
+
+        public int size(){
+            return clients.size();
+        }
+
+        /**
+         * sends a text message to every client
+         * @param data data to send
+         * @return amount of clients which queued the message
+         */
+        public int broadcast(String data){
+            return broadcast(BinaryWriter.encodeLine(bufferPool, data));
+        }
+
+        /**
+         * sends a typed message to every client
+         * @param codec codec of the message type
+         * @param message message to send
+         * @return amount of clients which queued the message
+         */
+        public <T> int broadcast(MessageCodec<T> codec, T message){
+            return broadcast(BinaryWriter.encodeFrame(bufferPool, codec, message));
+        }
+
+        /**
+         * queues the frame on every client, clients which have finished are removed
+         * @param frame encoded frame, the reference is released afterwards
+         * @return amount of clients which queued the frame
+         */
+        private int broadcast(BufferPool.Buffer frame){
+            int queued = 0;
+            try {
+                for(Client c : clients){
+                    if(c.enqueue(frame.retain())) queued++;
+                    else if(c.isFinished()) {
+                        if(BuildConfig.DEBUG) Log.d(TAG, "removing finished client");
+                        clients.remove(c);
+                    }
+                }
+            } finally {
+                frame.release();
+            }
+            return queued;
+        }
+    }
+
+    /**
+     * persistent outbound queue of one peer, an append-only journal of memory-mapped segment files
+     * records are forced to disk in groups by a committer thread and drained into the attached client
+     * segments are deleted once the remote side has acknowledged all of their records
+     * delivery is at-least-once, records which were sent but not acknowledged are sent again on the next connection
+     */
+    public static class Journal {
+        private static final String TAG = "BT.Journal";
+
+        static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+        static final int DEFAULT_COMMIT_INTERVAL_MS = 50;
+        static final int RECORD_HEADER_SIZE = 16;
+        static final int TYPE_RECORD = -1;
+        static final int TYPE_ACK = -2;
+        static final int DRAIN_WATERMARK = 64 * 1024;
+
+        private static final String SEGMENT_SUFFIX = ".seg";
+        private static final String ACK_FILE = "ack";
+
+        private static final class Segment {
+            private final File file;
+            private final long firstSeq;
+            private final FileChannel channel;
+            private final MappedByteBuffer map;
+            private int writePos = 0;
+            private long lastSeq;
+
+            Segment(File file, long firstSeq, int size) throws IOException {
+                this.file = file;
+                this.firstSeq = firstSeq;
+                this.lastSeq = firstSeq - 1;
+                channel = new RandomAccessFile(file, "rw").getChannel();
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+
+            void delete(){
+                try {
+                    channel.close();
+                } catch (IOException e){
+                    e.printStackTrace();
+                }
+                if(!file.delete()) Log.w(TAG, "could not delete " + file);
+            }
+        }
+
+        private final File directory;
+        private final int segmentSize;
+        private final int commitIntervalMs;
+        private final ArrayList<Segment> segments = new ArrayList<>();
+        private final Set<Segment> dirtySegments = new HashSet<>();
+        private final RandomAccessFile ackFile;
+        private final CRC32 crc = new CRC32();
+        private final Thread committer;
+        private long nextSeq;
+        private long ackedSeq;
+        private long committedSeq;
+        private boolean ackDirty = false;
+        private boolean open = true;
+        private Client client = null;
+        private long sentSeq;
+        private Segment cursor = null;
+        private long cursorSeq;
+        private int cursorPos;
+
+        /**
+         * opens or creates a journal
+         * @param directory directory of this peer's journal
+         * @throws IOException if the directory or segments can not be opened
+         */
+        public Journal(File directory) throws IOException {
+            this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL_MS);
+        }
+
+        /**
+         * opens or creates a journal
+         * @param directory directory of this peer's journal
+         * @param segmentSize size of each segment file, the largest record has to fit
+         * @param commitIntervalMs how often appended records are forced to disk
+         * @throws IOException if the directory or segments can not be opened
+         */
+        public Journal(File directory, int segmentSize, int commitIntervalMs) throws IOException {
+            if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("could not create " + directory);
+            this.directory = directory;
+            this.segmentSize = segmentSize;
+            this.commitIntervalMs = commitIntervalMs;
+            ackFile = new RandomAccessFile(new File(directory, ACK_FILE), "rw");
+            ackedSeq = ackFile.length() >= 8 ? ackFile.readLong() : 0;
+            recover();
+            committedSeq = nextSeq - 1;
+            committer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runCommitter();
+                }
+            }, TAG);
+            committer.setDaemon(true);
+            committer.start();
+        }
+
+        /**
+         * maps the existing segments, drops torn records and fully acknowledged segments
+         * @throws IOException if a segment can not be mapped
+         */
+        private void recover() throws IOException {
+            File[] files = directory.listFiles();
+            List<Long> firstSeqs = new ArrayList<>();
+            if(files != null) for(File f : files){
+                String n = f.getName();
+                if(!n.endsWith(SEGMENT_SUFFIX)) continue;
+                try {
+                    firstSeqs.add(Long.parseLong(n.substring(0, n.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e){
+                    Log.w(TAG, "ignoring " + f);
+                }
+            }
+            Collections.sort(firstSeqs);
+            nextSeq = ackedSeq + 1;
+            for(long firstSeq : firstSeqs){
+                Segment s = new Segment(segmentFile(firstSeq), firstSeq, segmentSize);
+                scan(s);
+                segments.add(s);
+                nextSeq = Math.max(nextSeq, s.lastSeq + 1);
+            }
+            while (segments.size() > 1 && segments.get(0).lastSeq <= ackedSeq) segments.remove(0).delete();
+        }
+
+        /**
+         * finds the end of the valid records of a segment and zeroes everything behind it
+         * @param s segment to scan
+         */
+        private void scan(Segment s){
+            ByteBuffer m = s.map;
+            int pos = 0;
+            while (pos + RECORD_HEADER_SIZE <= segmentSize){
+                int length = m.getInt(pos);
+                if(length <= 0 || pos + RECORD_HEADER_SIZE + length > segmentSize) break;
+                long seq = m.getLong(pos + 8);
+                if(seq != s.lastSeq + 1 || m.getInt(pos + 4) != checksum(m, pos + RECORD_HEADER_SIZE, length)) break;
+                s.lastSeq = seq;
+                pos += RECORD_HEADER_SIZE + length;
+            }
+            s.writePos = pos;
+            if(pos + 4 <= segmentSize && m.getInt(pos) != 0){
+                Log.w(TAG, "dropping torn record at " + pos + " of " + s.file);
+                for(int i = pos; i < segmentSize; i++) m.put(i, (byte) 0);
+                dirtySegments.add(s);
+            }
+        }
+
+        private int checksum(ByteBuffer m, int pos, int length){
+            crc.reset();
+            for(int i = pos; i < pos + length; i++) crc.update(m.get(i));
+            return (int) crc.getValue();
+        }
+
+        private File segmentFile(long firstSeq){
+            return new File(directory, String.format(Locale.US, "%020d", firstSeq) + SEGMENT_SUFFIX);
+        }
+
+        /**
+         * appends a frame, it is forced to disk with the next group commit
+         * @param frame buffer with position and limit around the frame, the caller keeps its reference
+         * @return sequence number of the record
+         * @throws IOException if a new segment can not be created
+         */
+        public synchronized long append(BufferPool.Buffer frame) throws IOException {
+            if(!open) throw new IOException("journal is closed");
+            ByteBuffer src = frame.buffer();
+            int length = src.remaining();
+            if(RECORD_HEADER_SIZE + length > segmentSize) throw new IllegalArgumentException("record of " + length + " bytes exceeds the segment size");
+            Segment s = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if(s == null || s.writePos + RECORD_HEADER_SIZE + length > segmentSize){
+                s = new Segment(segmentFile(nextSeq), nextSeq, segmentSize);
+                segments.add(s);
+                truncate();
+            }
+            long seq = nextSeq++;
+            crc.reset();
+            crc.update(frame.array(), src.arrayOffset() + src.position(), length);
+            ByteBuffer m = s.map;
+            m.position(s.writePos + RECORD_HEADER_SIZE);
+            m.put(frame.array(), src.arrayOffset() + src.position(), length);
+            m.putLong(s.writePos + 8, seq);
+            m.putInt(s.writePos + 4, (int) crc.getValue());
+            m.putInt(s.writePos, length);
+            s.writePos += RECORD_HEADER_SIZE + length;
+            s.lastSeq = seq;
+            dirtySegments.add(s);
+            return seq;
+        }
+
+        /**
+         * blocks until the record has been forced to disk, concurrent callers share one commit
+         * @param seq sequence number returned by append
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public synchronized void sync(long seq) throws InterruptedException {
+            notifyAll();
+            while (open && committedSeq < seq) wait();
+        }
+
+        /**
+         * appends a frame and drains it into the attached client once the records before it have been queued
+         * frames which can not be persisted, e.g. because they exceed the segment size, are sent without the journal
+         * or dropped if no client is attached
+         * the journal takes over the reference of the frame
+         * @param frame encoded line or frame
+         */
+        void send(BufferPool.Buffer frame){
+            synchronized (this){
+                try {
+                    append(frame);
+                    drain();
+                } catch (IOException | IllegalArgumentException e){
+                    if(client != null) {
+                        Log.e(TAG, "could not persist frame, sending it without the journal", e);
+                        client.enqueue(frame);
+                        return;
+                    }
+                    Log.e(TAG, "could not persist frame and no client is attached, dropping it", e);
+                }
+            }
+            frame.release();
+        }
+
+        /**
+         * wraps a journal record into a control frame
+         * @param seq sequence number of the record
+         * @param payload encoded line or frame
+         * @return control frame
+         */
+        private BufferPool.Buffer record(long seq, ByteBuffer payload){
+            BinaryWriter w = BinaryWriter.beginFrame(client.getBufferPool(), TYPE_RECORD);
+            w.writeVarLong(seq);
+            w.writeRawBytes(payload);
+            return w.endFrame();
+        }
+
+        /**
+         * attaches a client and starts sending every record which has not been acknowledged yet
+         * @param client connected client
+         */
+        synchronized void attach(Client client){
+            this.client = client;
+            sentSeq = ackedSeq;
+            cursor = null;
+            drain();
+        }
+
+        /**
+         * @param client client which has finished
+         */
+        synchronized void detach(Client client){
+            if(this.client != client) return;
+            this.client = null;
+            cursor = null;
+        }
+
+        /**
+         * queues further records if the client is still attached, called whenever its writer has flushed
+         * @param client client whose send queue may have room again
+         */
+        synchronized void drain(Client client){
+            if(this.client == client) drain();
+        }
+
+        /**
+         * queues the records following the last one sent straight from the segments
+         * until DRAIN_WATERMARK bytes are waiting in the send queue, so the backlog is never loaded into the heap at once
+         */
+        private void drain(){
+            if(client == null) return;
+            if(sentSeq < ackedSeq) sentSeq = ackedSeq;
+            while (sentSeq < nextSeq - 1 && client.getQueuedBytes() < DRAIN_WATERMARK){
+                long seq = sentSeq + 1;
+                if(cursor == null || cursorSeq != seq || seq > cursor.lastSeq) seek(seq);
+                if(cursor == null) return;
+                ByteBuffer m = cursor.map.duplicate();
+                int length = m.getInt(cursorPos);
+                m.limit(cursorPos + RECORD_HEADER_SIZE + length);
+                m.position(cursorPos + RECORD_HEADER_SIZE);
+                cursorPos += RECORD_HEADER_SIZE + length;
+                cursorSeq++;
+                sentSeq = seq;
+                if(!client.enqueue(record(seq, m), false)) return;
+            }
+        }
+
+        /**
+         * points the cursor at the record with the given sequence number
+         * @param seq sequence number of the record
+         */
+        private void seek(long seq){
+            cursor = null;
+            for(Segment s : segments){
+                if(seq < s.firstSeq || seq > s.lastSeq) continue;
+                cursor = s;
+                cursorPos = 0;
+                for(cursorSeq = s.firstSeq; cursorSeq < seq; cursorSeq++) cursorPos += RECORD_HEADER_SIZE + s.map.getInt(cursorPos);
+                return;
+            }
+            Log.e(TAG, "record " + seq + " is missing");
+        }
+
+        /**
+         * marks every record up to seq as delivered and deletes fully acknowledged segments
+         * @param seq highest sequence number received by the remote side
+         */
+        synchronized void acknowledge(long seq){
+            if(seq <= ackedSeq) return;
+            ackedSeq = Math.min(seq, nextSeq - 1);
+            ackDirty = true;
+            truncate();
+        }
+
+        /**
+         * deletes fully acknowledged segments except the one being appended to
+         */
+        private void truncate(){
+            while (segments.size() > 1 && segments.get(0).lastSeq <= ackedSeq){
+                Segment s = segments.remove(0);
+                dirtySegments.remove(s);
+                s.delete();
+            }
+        }
+
+        private void runCommitter(){
+            while (true){
+                synchronized (this){
+                    if(!open) return;
+                    try {
+                        wait(commitIntervalMs);
+                    } catch (InterruptedException e){
+                        return;
+                    }
+                }
+                commit();
+            }
+        }
+
+        /**
+         * forces every dirty segment and the acknowledged position to disk
+         */
+        public void commit(){
+            long target;
+            long ack;
+            Segment[] dirty;
+            boolean writeAck;
+            synchronized (this){
+                target = nextSeq - 1;
+                writeAck = ackDirty;
+                if(dirtySegments.isEmpty() && !writeAck) return;
+                ack = ackedSeq;
+                ackDirty = false;
+                dirty = dirtySegments.toArray(new Segment[0]);
+                dirtySegments.clear();
+            }
+            for(Segment s : dirty) s.map.force();
+            if(writeAck){
+                try {
+                    ackFile.seek(0);
+                    ackFile.writeLong(ack);
+                    ackFile.getFD().sync();
+                } catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+            synchronized (this){
+                if(target > committedSeq) committedSeq = target;
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return amount of records which have not been acknowledged yet
+         */
+        public synchronized long getPendingCount(){
+            return nextSeq - 1 - ackedSeq;
+        }
+
+        /**
+         * commits and closes every segment
+         */
+        public void close(){
+            commit();
+            synchronized (this){
+                open = false;
+                notifyAll();
+                for(Segment s : segments){
+                    try {
+                        s.channel.close();
+                    } catch (IOException e){
+                        e.printStackTrace();
+                    }
+                }
+                segments.clear();
+                try {
+                    ackFile.close();
+                } catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * optional delta sync stage for payloads which are sent again and again
+     * payloads are split into content-defined chunks with a gear rolling hash
+     * chunks the remote side has seen before are sent as a 64 bit hash reference only
+     * both sides keep an LRU cache and need a DeltaSync set on their client
+     * transfers bypass the journal, their frames are never dropped by the backpressure policy so a transfer can not get stuck
+     * use one instance per remote device and the same cache size on both sides
+     */
+    public static class DeltaSync {
+        private static final String TAG = "BT.DeltaSync";
+
+        static final int TYPE_BEGIN = -3;
+        static final int TYPE_CHUNK = -4;
+        static final int TYPE_REF = -5;
+        static final int TYPE_END = -6;
+        static final int TYPE_ACK = -7;
+        static final int TYPE_MISS = -8;
+
+        static final int MIN_CHUNK_SIZE = 512;
+        static final int MAX_CHUNK_SIZE = 8192;
+        static final long BOUNDARY_MASK = 0xFFE0000000000000L;
+        static final int DEFAULT_CACHE_SIZE = 4096;
+
+        private static final long[] GEAR = new long[256];
+
+        static {
+            long x = 0x2545F4914F6CDD1DL;
+            for(int i = 0; i < GEAR.length; i++){
+                x += 0x9E3779B97F4A7C15L;
+                long z = x;
+                z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+                z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+                GEAR[i] = z ^ (z >>> 31);
+            }
+        }
+
+        private final Map<Long, Boolean> remoteChunks;
+        private final Map<Long, byte[]> localChunks;
+        private final Map<Integer, BufferPool.Buffer> pending = new HashMap<>();
+        private final MessageDigest digest;
+        private int nextTransferId = 0;
+
+        private BufferPool.Buffer incoming = null;
+        private int incomingId;
+        private boolean incomingBroken;
+
+        private long sentBytes = 0;
+        private long savedBytes = 0;
+
+        public DeltaSync(){
+            this(DEFAULT_CACHE_SIZE);
+        }
+
+        /**
+         * @param cacheSize amount of chunks remembered per direction
+         */
+        public DeltaSync(final int cacheSize){
+            remoteChunks = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+            localChunks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e){
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static boolean handles(int typeId){
+            return typeId <= TYPE_BEGIN && typeId >= TYPE_MISS;
+        }
+
+        /**
+         * finds the end of the chunk starting at start
+         * @param a payload
+         * @param start start of the chunk
+         * @param end end of the payload
+         * @return end of the chunk
+         */
+        static int nextBoundary(byte[] a, int start, int end){
+            int max = Math.min(end, start + MAX_CHUNK_SIZE);
+            int i = Math.min(max, start + MIN_CHUNK_SIZE);
+            long h = 0;
+            for(int j = Math.max(start, i - 64); j < i; j++) h = (h << 1) + GEAR[a[j] & 0xFF];
+            for(; i < max; i++){
+                h = (h << 1) + GEAR[a[i] & 0xFF];
+                if((h & BOUNDARY_MASK) == 0) return i + 1;
+            }
+            return max;
+        }
+
+        private long hash(byte[] a, int offset, int length){
+            digest.update(a, offset, length);
+            byte[] d = digest.digest();
+            long h = 0;
+            for(int i = 0; i < 8; i++) h = (h << 8) | (d[i] & 0xFF);
+            return h;
+        }
+
+        /**
+         * sends the payload, chunks the remote side has are replaced by references
+         * the payload is kept until the remote side has acknowledged it
+         * @param client send interface of the connected client
+         * @param payload encoded line or frame, the reference is taken over
+         */
+        synchronized void send(SendInterface client, BufferPool.Buffer payload){
+            send(client, payload, false);
+        }
+
+        private void send(SendInterface client, BufferPool.Buffer payload, boolean full){
+            int id = nextTransferId++;
+            BufferPool pool = client.getBufferPool();
+            ByteBuffer bb = payload.buffer();
+            byte[] a = payload.array();
+            int end = bb.arrayOffset() + bb.limit();
+            pending.put(id, payload);
+            BinaryWriter w = BinaryWriter.beginFrame(pool, TYPE_BEGIN);
+            w.writeVarInt(id);
+            w.writeVarInt(bb.remaining());
+            client.enqueue(w.endFrame());
+            for(int start = bb.arrayOffset() + bb.position(); start < end; ){
+                int chunkEnd = nextBoundary(a, start, end);
+                int length = chunkEnd - start;
+                long h = hash(a, start, length);
+                if(!full && remoteChunks.get(h) != null){
+                    w = BinaryWriter.beginFrame(pool, TYPE_REF);
+                    w.writeVarInt(id);
+                    w.writeLong(h);
+                    savedBytes += length;
+                } else {
+                    remoteChunks.put(h, Boolean.TRUE);
+                    w = BinaryWriter.beginFrame(pool, TYPE_CHUNK);
+                    w.writeVarInt(id);
+                    w.writeBytes(a, start, length);
+                    sentBytes += length;
+                }
+                client.enqueue(w.endFrame());
+                start = chunkEnd;
+            }
+            w = BinaryWriter.beginFrame(pool, TYPE_END);
+            w.writeVarInt(id);
+            client.enqueue(w.endFrame());
+        }
+
+        /**
+         * handles a delta control frame
+         * @param client send interface of the client the frame has been received on
+         * @param typeId control frame type
+         * @param in frame payload
+         * @return the rebuilt payload once a transfer is complete, owned by the caller, otherwise null
+         */
+        synchronized BufferPool.Buffer onControl(SendInterface client, int typeId, BinaryReader in){
+            int id = in.readVarInt();
+            switch (typeId){
+                case TYPE_BEGIN:
+                    int length = in.readVarInt();
+                    if(length < 0 || length > Client.Reader.MAX_FRAME_SIZE) throw new IllegalStateException("invalid delta length " + length);
+                    if(incoming != null) incoming.release();
+                    incoming = null;
+                    incoming = client.getBufferPool().acquire(length);
+                    incoming.buffer().limit(length);
+                    incomingId = id;
+                    incomingBroken = false;
+                    return null;
+                case TYPE_CHUNK:
+                    byte[] chunk = in.readBytes();
+                    if(!accepts(id, chunk.length)) return null;
+                    localChunks.put(hash(chunk, 0, chunk.length), chunk);
+                    incoming.buffer().put(chunk);
+                    return null;
+                case TYPE_REF:
+                    byte[] known = localChunks.get(in.readLong());
+                    if(known == null) incomingBroken = true;
+                    else if(accepts(id, known.length)) incoming.buffer().put(known);
+                    return null;
+                case TYPE_END:
+                    if(incoming == null || incomingId != id) return null;
+                    BufferPool.Buffer rebuilt = incoming;
+                    incoming = null;
+                    if(incomingBroken || rebuilt.buffer().hasRemaining()){
+                        Log.w(TAG, "transfer " + id + " references unknown chunks, requesting it again");
+                        rebuilt.release();
+                        reply(client, TYPE_MISS, id);
+                        return null;
+                    }
+                    rebuilt.buffer().flip();
+                    reply(client, TYPE_ACK, id);
+                    return rebuilt;
+                case TYPE_ACK:
+                    BufferPool.Buffer acked = pending.remove(id);
+                    if(acked != null) acked.release();
+                    return null;
+                case TYPE_MISS:
+                    BufferPool.Buffer missed = pending.remove(id);
+                    if(missed != null) send(client, missed, true);
+                    return null;
+                default:
+                    return null;
+            }
+        }
+
+        private boolean accepts(int id, int length){
+            if(incoming == null || incomingId != id || incomingBroken) return false;
+            if(incoming.buffer().remaining() < length) {
+                incomingBroken = true;
+                return false;
+            }
+            return true;
+        }
+
+        private void reply(SendInterface client, int typeId, int id){
+            BinaryWriter w = BinaryWriter.beginFrame(client.getBufferPool(), typeId);
+            w.writeVarInt(id);
+            client.enqueue(w.endFrame());
+        }
+
+        /**
+         * drops the state of the current connection, the chunk caches are kept
+         */
+        synchronized void reset(){
+            for(BufferPool.Buffer b : pending.values()) b.release();
+            pending.clear();
+            if(incoming != null) incoming.release();
+            incoming = null;
+        }
+
+        /**
+         * forgets every chunk, e.g. if the remote side lost its cache
+         */
+        public synchronized void clear(){
+            remoteChunks.clear();
+            localChunks.clear();
+        }
+
+        /**
+         * @return payload bytes sent as chunks
+         */
+        public synchronized long getSentBytes(){
+            return sentBytes;
+        }
+
+        /**
+         * @return payload bytes replaced by references
+         */
+        public synchronized long getSavedBytes(){
+            return savedBytes;
+        }
+    }
+
+    /**
+     * hook for structured events of the connection hot paths, see BT.setTracer
+     * record is called on the reader and writer threads and must not block
+     */
+    public interface Tracer {
+        int CONNECT = 0;
+        int HANDSHAKE = 1;
+        int ENQUEUE = 2;
+        int WRITE = 3;
+        int FLUSH = 4;
+        int READ = 5;
+        int DELIVER = 6;
+        int ACCEPT = 7;
+        int DISCONNECT = 8;
+        int DISCOVERY_STARTED = 9;
+        int DEVICE_FOUND = 10;
+        int DISCOVERY_FINISHED = 11;
+
+        /**
+         * @param event one of the event constants
+         * @param session id of the client, 0 outside of a client
+         * @param size bytes or items involved, 0 if there are none
+         */
+        void record(int event, int session, long size);
+    }
+
+    /**
+     * tracer recording into preallocated arrays, the oldest events are overwritten once it is full
+     * can be dumped to a compact binary file or to the chrome trace format (chrome://tracing, perfetto)
+     */
+    public static class RingBufferTracer implements Tracer {
+        static final int BINARY_MAGIC = 0x41425454;
+        static final int BINARY_VERSION = 1;
+        static final String[] EVENT_NAMES = {
+                "connect", "handshake", "enqueue", "write", "flush", "read", "deliver",
+                "accept", "disconnect", "discovery_started", "device_found", "discovery_finished"
+        };
+
+        private final int mask;
+        private final long[] times;
+        private final int[] events;
+        private final int[] sessions;
+        private final long[] sizes;
+        private final AtomicLong cursor = new AtomicLong();
+        private final long origin = System.nanoTime();
+
+        /**
+         * @param capacity amount of events kept, rounded up to a power of two
+         */
+        public RingBufferTracer(int capacity){
+            int c = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+            mask = c - 1;
+            times = new long[c];
+            events = new int[c];
+            sessions = new int[c];
+            sizes = new long[c];
+        }
+
+        @Override
+        public void record(int event, int session, long size) {
+            int i = (int) (cursor.getAndIncrement() & mask);
+            times[i] = System.nanoTime() - origin;
+            events[i] = event;
+            sessions[i] = session;
+            sizes[i] = size;
+        }
+
+        /**
+         * @return amount of events currently held
+         */
+        public int size(){
+            return (int) Math.min(cursor.get(), mask + 1);
+        }
+
+        public void clear(){
+            cursor.set(0);
+        }
+
+        /**
+         * writes the events oldest first
+         * layout: int magic, int version, int count, then per event long nanos, byte event, int session, long size
+         * @param out stream to write to, not closed
+         * @throws IOException if writing fails
+         */
+        public void dump(OutputStream out) throws IOException {
+            long end = cursor.get();
+            int count = (int) Math.min(end, mask + 1);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+            dos.writeInt(BINARY_MAGIC);
+            dos.writeInt(BINARY_VERSION);
+            dos.writeInt(count);
+            for(long n = end - count; n < end; n++){
+                int i = (int) (n & mask);
+                dos.writeLong(times[i]);
+                dos.writeByte(events[i]);
+                dos.writeInt(sessions[i]);
+                dos.writeLong(sizes[i]);
+            }
+            dos.flush();
+        }
+
+        /**
+         * writes the events oldest first as chrome trace json, one track per session
+         * @param out stream to write to, not closed
+         * @throws IOException if writing fails
+         */
+        public void dumpChromeTrace(OutputStream out) throws IOException {
+            long end = cursor.get();
+            int count = (int) Math.min(end, mask + 1);
+            java.io.Writer w = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
+            w.write("{\"traceEvents\":[");
+            for(long n = end - count; n < end; n++){
+                int i = (int) (n & mask);
+                if(n > end - count) w.write(',');
+                w.write("\n{\"name\":\"");
+                w.write(events[i] >= 0 && events[i] < EVENT_NAMES.length ? EVENT_NAMES[events[i]] : Integer.toString(events[i]));
+                w.write("\",\"ph\":\"i\",\"s\":\"t\",\"pid\":1,\"tid\":");
+                w.write(Integer.toString(sessions[i]));
+                w.write(",\"ts\":");
+                w.write(Long.toString(times[i] / 1000));
+                w.write(".");
+                w.write(Long.toString(times[i] / 100 % 10));
+                w.write(",\"args\":{\"size\":");
+                w.write(Long.toString(sizes[i]));
+                w.write("}}");
+            }
+            w.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+            w.flush();
         }
     }
 }
+
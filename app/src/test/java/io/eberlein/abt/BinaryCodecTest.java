@@ -0,0 +1,172 @@
+package io.eberlein.abt;
+
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * round trips values through BinaryWriter and BinaryReader
+ */
+public class BinaryCodecTest {
+    private static final int[] INTS = {0, 1, -1, 63, -64, 64, -65, 127, 128, 16383, 16384, 2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE, Integer.MIN_VALUE};
+    private static final long[] LONGS = {0, 1, -1, 127, 128, Integer.MAX_VALUE, Integer.MIN_VALUE, 1L << 35, -(1L << 35), 1L << 62, Long.MAX_VALUE, Long.MIN_VALUE};
+
+    private final BT.BufferPool pool = new BT.BufferPool(1024 * 1024);
+
+    /**
+     * parses the header of a finished frame
+     * @return reader positioned at the payload
+     */
+    private static BT.BinaryReader payload(BT.BufferPool.Buffer frame, int typeId){
+        ByteBuffer bb = frame.buffer().duplicate();
+        assertEquals(BT.BinaryWriter.FRAME_MARKER, bb.get());
+        BT.BinaryReader in = new BT.BinaryReader(bb);
+        assertEquals(typeId, in.readSignedVarInt());
+        assertEquals(in.readVarInt(), in.remaining());
+        return in;
+    }
+
+    @Test
+    public void varIntEdgeValues() {
+        BT.BinaryWriter w = BT.BinaryWriter.beginFrame(pool, 1);
+        for(int v : INTS) {
+            w.writeVarInt(v);
+            w.writeSignedVarInt(v);
+        }
+        for(long v : LONGS) {
+            w.writeVarLong(v);
+            w.writeSignedVarLong(v);
+        }
+        BT.BufferPool.Buffer frame = w.endFrame();
+        BT.BinaryReader in = payload(frame, 1);
+        for(int v : INTS) {
+            assertEquals(v, in.readVarInt());
+            assertEquals(v, in.readSignedVarInt());
+        }
+        for(long v : LONGS) {
+            assertEquals(v, in.readVarLong());
+            assertEquals(v, in.readSignedVarLong());
+        }
+        assertEquals(0, in.remaining());
+        frame.release();
+    }
+
+    @Test
+    public void zigZagKeepsSmallValuesSmall() {
+        assertEquals(0, BT.BinaryWriter.zigZag(0));
+        assertEquals(1, BT.BinaryWriter.zigZag(-1));
+        assertEquals(2, BT.BinaryWriter.zigZag(1));
+        assertEquals(-1, BT.BinaryWriter.zigZag(Integer.MIN_VALUE));
+        assertEquals(-2, BT.BinaryWriter.zigZag(Integer.MAX_VALUE));
+        assertEquals(1, BT.BinaryWriter.varIntSize(BT.BinaryWriter.zigZag(-64)));
+        assertEquals(2, BT.BinaryWriter.varIntSize(BT.BinaryWriter.zigZag(-65)));
+        assertEquals(5, BT.BinaryWriter.varIntSize(-1));
+    }
+
+    @Test
+    public void stringsAreUtf8() {
+        String[] strings = {"", "abc", "äöü", "€", "😀", "a😀b🎉", "￿"};
+        BT.BinaryWriter w = BT.BinaryWriter.beginFrame(pool, 2);
+        for(String s : strings) w.writeString(s);
+        BT.BufferPool.Buffer frame = w.endFrame();
+        BT.BinaryReader in = payload(frame, 2);
+        for(String s : strings) assertEquals(s, in.readString());
+        frame.release();
+        for(String s : strings) assertEquals(s, s.getBytes(java.nio.charset.Charset.forName("UTF-8")).length, BT.BinaryWriter.utf8Length(s));
+    }
+
+    @Test
+    public void unpairedSurrogatesBecomeQuestionMarks() {
+        BT.BinaryWriter w = BT.BinaryWriter.beginFrame(pool, 2);
+        w.writeString("a\ud83db");
+        w.writeString("\ude00");
+        BT.BufferPool.Buffer frame = w.endFrame();
+        BT.BinaryReader in = payload(frame, 2);
+        assertEquals("a?b", in.readString());
+        assertEquals("?", in.readString());
+        frame.release();
+    }
+
+    @Test
+    public void headerIsRightAlignedInFrontOfThePayload() {
+        int[] typeIds = {0, 1, -1, 63, 64, -65, 100000, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        int[] lengths = {0, 1, 127, 128, 16383, 16384, 70000};
+        for(int typeId : typeIds){
+            for(int length : lengths){
+                BT.BinaryWriter w = BT.BinaryWriter.beginFrame(pool, typeId);
+                for(int i = 0; i < length; i++) w.writeByte(i);
+                BT.BufferPool.Buffer frame = w.endFrame();
+                ByteBuffer bb = frame.buffer();
+                int header = 1 + BT.BinaryWriter.varIntSize(BT.BinaryWriter.zigZag(typeId)) + BT.BinaryWriter.varIntSize(length);
+                assertEquals(BT.BinaryWriter.FRAME_HEADER_RESERVE - header, bb.position());
+                assertEquals(BT.BinaryWriter.FRAME_HEADER_RESERVE + length, bb.limit());
+                BT.BinaryReader in = payload(frame, typeId);
+                for(int i = 0; i < length; i++) assertEquals((byte) i, in.readByte());
+                frame.release();
+            }
+        }
+    }
+
+    @Test
+    public void writerGrowsThroughThePool() {
+        byte[] big = new byte[100000];
+        for(int i = 0; i < big.length; i++) big[i] = (byte) (i * 31);
+        BT.BinaryWriter w = BT.BinaryWriter.beginFrame(pool, 3);
+        w.writeInt(42);
+        w.writeBytes(big);
+        w.writeLong(-42);
+        for(int i = 0; i < 1000; i++) w.writeShort(i);
+        assertEquals(BT.BinaryWriter.FRAME_HEADER_RESERVE + 4 + 3 + big.length + 8 + 2000, w.size());
+        BT.BufferPool.Buffer frame = w.endFrame();
+        assertTrue(frame.capacity() >= frame.buffer().limit());
+        BT.BinaryReader in = payload(frame, 3);
+        assertEquals(42, in.readInt());
+        assertArrayEquals(big, in.readBytes());
+        assertEquals(-42, in.readLong());
+        for(int i = 0; i < 1000; i++) assertEquals(i, in.readShort());
+        frame.release();
+    }
+
+    @Test
+    public void linesEndWithANewline() {
+        BT.BufferPool.Buffer line = BT.BinaryWriter.encodeLine(pool, "héllo");
+        byte[] b = new byte[line.buffer().remaining()];
+        line.buffer().duplicate().get(b);
+        assertArrayEquals("héllo\n".getBytes(java.nio.charset.Charset.forName("UTF-8")), b);
+        line.release();
+    }
+
+    @Test
+    public void negativeLengthsAreRejected() {
+        BT.BinaryWriter w = BT.BinaryWriter.beginFrame(pool, 4);
+        w.writeVarInt(-5);
+        w.writeVarInt(-5);
+        BT.BufferPool.Buffer frame = w.endFrame();
+        BT.BinaryReader in = payload(frame, 4);
+        try {
+            in.readString();
+            fail("negative string length accepted");
+        } catch (IllegalStateException e){
+            assertTrue(e.getMessage().startsWith("negative length"));
+        }
+        try {
+            in.readBytes();
+            fail("negative byte array length accepted");
+        } catch (IllegalStateException e){
+            assertTrue(e.getMessage().startsWith("negative length"));
+        }
+        frame.release();
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void lengthsBeyondThePayloadAreRejected() {
+        BT.BinaryWriter w = BT.BinaryWriter.beginFrame(pool, 5);
+        w.writeVarInt(10);
+        w.writeByte(1);
+        BT.BufferPool.Buffer frame = w.endFrame();
+        payload(frame, 5).readBytes();
+    }
+}
@@ -0,0 +1,141 @@
+package io.eberlein.abt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * checks size classes, reuse, the memory cap and reference counting of the BufferPool
+ */
+public class BufferPoolTest {
+    private final BT.BufferPool pool = new BT.BufferPool(64 * 1024);
+
+    @Test
+    public void capacityIsRoundedUpToTheSizeClass() {
+        int[] requested = {0, 1, 256, 257, 1024, 1025, 65536};
+        int[] expected = {256, 256, 256, 1024, 1024, 4096, 65536};
+        for(int i = 0; i < requested.length; i++){
+            BT.BufferPool.Buffer b = pool.acquire(requested[i]);
+            assertEquals(expected[i], b.capacity());
+            assertEquals(0, b.buffer().position());
+            assertEquals(b.capacity(), b.buffer().limit());
+            assertEquals(1, b.refCnt());
+            assertFalse(b.isDirect());
+            b.release();
+        }
+        BT.BufferPool.Buffer big = pool.acquire(100000);
+        assertEquals(100000, big.capacity());
+        big.release();
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        BT.BufferPool.Buffer a = pool.acquire(1000);
+        a.buffer().position(10);
+        assertTrue(a.release());
+        BT.BufferPool.Buffer b = pool.acquire(1000);
+        assertSame(a, b);
+        assertEquals(0, b.buffer().position());
+        BT.BufferPool.Stats stats = pool.getStats();
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.misses);
+        assertEquals(0, stats.pooledBytes);
+        b.release();
+        assertEquals(1024, pool.getStats().pooledBytes);
+    }
+
+    @Test
+    public void heapAndDirectBuffersArePooledSeparately() {
+        BT.BufferPool.Buffer d = pool.acquireDirect(100);
+        assertTrue(d.isDirect());
+        d.release();
+        BT.BufferPool.Buffer h = pool.acquire(100);
+        assertFalse(h.isDirect());
+        h.release();
+        assertSame(d, pool.acquireDirect(100));
+        assertSame(h, pool.acquire(100));
+    }
+
+    @Test
+    public void buffersAboveTheLargestClassAreNotPooled() {
+        BT.BufferPool.Buffer b = pool.acquire(65537);
+        b.release();
+        BT.BufferPool.Stats stats = pool.getStats();
+        assertEquals(1, stats.dropped);
+        assertEquals(0, stats.pooledBytes);
+        assertNotSame(b, pool.acquire(65537));
+    }
+
+    @Test
+    public void pooledMemoryIsCapped() {
+        List<BT.BufferPool.Buffer> buffers = new ArrayList<>();
+        for(int i = 0; i < 20; i++) buffers.add(pool.acquire(16384));
+        for(BT.BufferPool.Buffer b : buffers) b.release();
+        BT.BufferPool.Stats stats = pool.getStats();
+        assertEquals(64 * 1024, stats.pooledBytes);
+        assertEquals(16, stats.dropped);
+        pool.setMaxPooledBytes(20000);
+        assertEquals(16384, pool.getStats().pooledBytes);
+    }
+
+    @Test
+    public void trimDropsEveryBufferButKeepsTheCap() {
+        for(int size : new int[]{100, 1000, 4000, 16000}) pool.acquire(size).release();
+        pool.acquireDirect(100).release();
+        assertTrue(pool.getStats().pooledBytes > 0);
+        pool.trim();
+        assertEquals(0, pool.getStats().pooledBytes);
+        long misses = pool.getStats().misses;
+        BT.BufferPool.Buffer b = pool.acquire(100);
+        assertEquals(misses + 1, pool.getStats().misses);
+        b.release();
+        assertEquals(256, pool.getStats().pooledBytes);
+        assertSame(b, pool.acquire(100));
+    }
+
+    @Test
+    public void bufferReturnsWithTheLastReference() {
+        BT.BufferPool.Buffer b = pool.acquire(100);
+        assertSame(b, b.retain());
+        assertEquals(2, b.refCnt());
+        assertFalse(b.release());
+        assertEquals(0, pool.getStats().pooledBytes);
+        assertTrue(b.release());
+        assertEquals(256, pool.getStats().pooledBytes);
+        try {
+            b.retain();
+            fail("retained a released buffer");
+        } catch (IllegalStateException e){
+            assertEquals("buffer has already been released", e.getMessage());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasingTooOftenThrows() {
+        BT.BufferPool.Buffer b = pool.acquire(100);
+        b.release();
+        b.release();
+    }
+
+    @Test(timeout = 30000)
+    public void leakedBuffersAreCounted() throws InterruptedException {
+        pool.setLeakDetection(true);
+        leak();
+        while (pool.getStats().leaks == 0){
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getStats().leaks);
+        pool.acquire(100).release();
+        System.gc();
+        Thread.sleep(10);
+        assertEquals(1, pool.getStats().leaks);
+    }
+
+    private void leak(){
+        pool.acquire(100);
+    }
+}
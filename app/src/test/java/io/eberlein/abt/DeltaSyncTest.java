@@ -0,0 +1,194 @@
+package io.eberlein.abt;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * runs a sending and a receiving DeltaSync against each other without a socket
+ */
+public class DeltaSyncTest {
+    private static final int[] SIZES = {1, 255, 256, 1000, 4096, 4097, 65535, 65536, 70000, 200000};
+
+    /**
+     * collects the frames a DeltaSync queues
+     */
+    private static class Link implements BT.SendInterface {
+        private final BT.BufferPool pool = new BT.BufferPool(1024 * 1024);
+        private final List<BT.BufferPool.Buffer> frames = new ArrayList<>();
+
+        @Override
+        public BT.BufferPool getBufferPool() {
+            return pool;
+        }
+
+        @Override
+        public boolean enqueue(BT.BufferPool.Buffer frame) {
+            frames.add(frame);
+            return true;
+        }
+
+        /**
+         * hands every queued frame to the other side
+         * @return the payloads the other side has rebuilt
+         */
+        List<byte[]> deliverTo(Link other, BT.DeltaSync otherSync){
+            return deliverTo(other, otherSync, frames.size());
+        }
+
+        /**
+         * hands the first count queued frames to the other side
+         * @return the payloads the other side has rebuilt
+         */
+        List<byte[]> deliverTo(Link other, BT.DeltaSync otherSync, int count){
+            List<byte[]> rebuilt = new ArrayList<>();
+            List<BT.BufferPool.Buffer> pending = new ArrayList<>(frames.subList(0, count));
+            frames.subList(0, count).clear();
+            for(BT.BufferPool.Buffer f : pending){
+                ByteBuffer bb = f.buffer();
+                assertEquals(BT.BinaryWriter.FRAME_MARKER, bb.get());
+                BT.BinaryReader in = new BT.BinaryReader(bb);
+                int typeId = in.readSignedVarInt();
+                assertEquals(in.readVarInt(), in.remaining());
+                BT.BufferPool.Buffer b = otherSync.onControl(other, typeId, in);
+                if(b != null) {
+                    byte[] payload = new byte[b.buffer().remaining()];
+                    b.buffer().get(payload);
+                    rebuilt.add(payload);
+                    b.release();
+                }
+                f.release();
+            }
+            return rebuilt;
+        }
+    }
+
+    private final Link sender = new Link();
+    private final Link receiver = new Link();
+    private final BT.DeltaSync senderSync = new BT.DeltaSync();
+    private final BT.DeltaSync receiverSync = new BT.DeltaSync();
+
+    private static byte[] payload(int size, long seed){
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    /**
+     * sends the payload and runs the protocol until both sides are idle
+     * @return every payload the receiver has delivered
+     */
+    private List<byte[]> transfer(byte[] data){
+        BT.BufferPool.Buffer b = sender.getBufferPool().acquire(data.length);
+        b.buffer().put(data);
+        b.buffer().flip();
+        senderSync.send(sender, b);
+        List<byte[]> delivered = new ArrayList<>();
+        for(int round = 0; round < 4 && !(sender.frames.isEmpty() && receiver.frames.isEmpty()); round++){
+            delivered.addAll(sender.deliverTo(receiver, receiverSync));
+            receiver.deliverTo(sender, senderSync);
+        }
+        assertTrue("transfer did not settle", sender.frames.isEmpty() && receiver.frames.isEmpty());
+        return delivered;
+    }
+
+    @Test
+    public void deliversEverySize() {
+        for(int size : SIZES){
+            byte[] data = payload(size, size);
+            List<byte[]> delivered = transfer(data);
+            assertEquals("size " + size, 1, delivered.size());
+            assertTrue("size " + size, Arrays.equals(data, delivered.get(0)));
+        }
+    }
+
+    @Test
+    public void repeatedPayloadIsSentAsReferences() {
+        byte[] data = payload(200000, 1);
+        transfer(data);
+        long sent = senderSync.getSentBytes();
+        data[100000] ^= 1;
+        List<byte[]> delivered = transfer(data);
+        assertTrue(Arrays.equals(data, delivered.get(0)));
+        assertTrue(senderSync.getSentBytes() - sent <= BT.DeltaSync.MAX_CHUNK_SIZE * 2);
+        assertTrue(senderSync.getSavedBytes() >= data.length - BT.DeltaSync.MAX_CHUNK_SIZE * 2);
+    }
+
+    @Test
+    public void resendsIfTheReceiverLostItsCache() {
+        byte[] data = payload(20000, 2);
+        transfer(data);
+        receiverSync.clear();
+        List<byte[]> delivered = transfer(data);
+        assertEquals(1, delivered.size());
+        assertTrue(Arrays.equals(data, delivered.get(0)));
+    }
+
+    @Test
+    public void invalidBeginDoesNotReleaseTwice() {
+        BT.BinaryWriter w = BT.BinaryWriter.beginFrame(sender.getBufferPool(), BT.DeltaSync.TYPE_BEGIN);
+        w.writeVarInt(1);
+        w.writeVarInt(1000);
+        sender.enqueue(w.endFrame());
+        w = BT.BinaryWriter.beginFrame(sender.getBufferPool(), BT.DeltaSync.TYPE_BEGIN);
+        w.writeVarInt(2);
+        w.writeVarInt(-1);
+        sender.enqueue(w.endFrame());
+        sender.deliverTo(receiver, receiverSync, 1);
+        try {
+            sender.deliverTo(receiver, receiverSync);
+            fail("invalid length accepted");
+        } catch (IllegalStateException e){
+            assertTrue(e.getMessage().startsWith("invalid delta length"));
+        }
+        receiverSync.reset();
+        assertTrue(Arrays.equals(payload(1000, 4), transfer(payload(1000, 4)).get(0)));
+    }
+
+    private static List<Integer> boundaries(byte[] data){
+        List<Integer> r = new ArrayList<>();
+        for(int i = 0; i < data.length; i = BT.DeltaSync.nextBoundary(data, i, data.length)) r.add(i);
+        return r;
+    }
+
+    /**
+     * edits data at offset and checks that the boundaries before the edit stay and the ones after it realign
+     * @param inserted bytes inserted at offset, negative to delete
+     */
+    private static void assertBoundariesRealign(byte[] data, int offset, int inserted){
+        byte[] edited = new byte[data.length + inserted];
+        System.arraycopy(data, 0, edited, 0, offset);
+        if(inserted > 0) System.arraycopy(payload(inserted, inserted), 0, edited, offset, inserted);
+        System.arraycopy(data, offset - Math.min(inserted, 0), edited, offset + Math.max(inserted, 0), data.length - offset + Math.min(inserted, 0));
+        List<Integer> a = boundaries(data);
+        List<Integer> b = boundaries(edited);
+        int resync = offset + 4 * BT.DeltaSync.MAX_CHUNK_SIZE;
+        List<Integer> before = new ArrayList<>();
+        List<Integer> after = new ArrayList<>();
+        for(int i : a) if(i + BT.DeltaSync.MAX_CHUNK_SIZE <= offset) before.add(i);
+        for(int i : a) if(i >= resync) after.add(i + inserted);
+        assertEquals(before, b.subList(0, before.size()));
+        assertTrue("boundaries did not realign", b.size() > after.size());
+        assertEquals(after, b.subList(b.size() - after.size(), b.size()));
+        assertTrue(after.size() > 10);
+        for(int i = 1; i < b.size(); i++){
+            int length = b.get(i) - b.get(i - 1);
+            assertTrue(length >= BT.DeltaSync.MIN_CHUNK_SIZE && length <= BT.DeltaSync.MAX_CHUNK_SIZE);
+        }
+    }
+
+    @Test
+    public void chunkBoundariesDependOnContent() {
+        byte[] data = payload(200000, 3);
+        assertBoundariesRealign(data, 10000, 1);
+        assertBoundariesRealign(data, 10000, 37);
+        assertBoundariesRealign(data, 10000, -1);
+        assertBoundariesRealign(data, 10000, -300);
+    }
+}
@@ -0,0 +1,156 @@
+package io.eberlein.abt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * opens, corrupts and reopens journals in a temporary directory
+ */
+public class JournalTest {
+    private static final int SEGMENT_SIZE = 256;
+
+    private final BT.BufferPool pool = new BT.BufferPool(1024 * 1024);
+    private File directory;
+    private BT.Journal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("journal", "");
+        assertTrue(directory.delete());
+        journal = open();
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+        File[] files = directory.listFiles();
+        if(files != null) for(File f : files) assertTrue(f.delete());
+        assertTrue(directory.delete());
+    }
+
+    private BT.Journal open() throws IOException {
+        return new BT.Journal(directory, SEGMENT_SIZE, 10);
+    }
+
+    private BT.Journal reopen() throws IOException {
+        journal.close();
+        journal = open();
+        return journal;
+    }
+
+    private long append(String data) throws IOException {
+        BT.BufferPool.Buffer line = BT.BinaryWriter.encodeLine(pool, data);
+        try {
+            return journal.append(line);
+        } finally {
+            line.release();
+        }
+    }
+
+    private File[] segments(){
+        File[] files = directory.listFiles();
+        assertNotNull(files);
+        File[] segments = new File[files.length - 1];
+        int n = 0;
+        for(File f : files) if(f.getName().endsWith(".seg")) segments[n++] = f;
+        assertEquals(segments.length, n);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    @Test
+    public void sequenceNumbersContinueAfterReopen() throws Exception {
+        for(int i = 1; i <= 20; i++) assertEquals(i, append("message " + i));
+        assertEquals(20, journal.getPendingCount());
+        reopen();
+        assertEquals(20, journal.getPendingCount());
+        assertEquals(21, append("after reopen"));
+    }
+
+    @Test(timeout = 10000)
+    public void syncWaitsForTheGroupCommit() throws Exception {
+        long seq = 0;
+        for(int i = 0; i < 5; i++) seq = append("message " + i);
+        journal.sync(seq);
+        journal.sync(seq);
+        journal.close();
+        journal.sync(seq + 100);
+        journal = open();
+        assertEquals(5, journal.getPendingCount());
+    }
+
+    @Test
+    public void acknowledgedPositionSurvivesReopen() throws Exception {
+        for(int i = 0; i < 20; i++) append("message " + i);
+        journal.acknowledge(12);
+        journal.commit();
+        reopen();
+        assertEquals(8, journal.getPendingCount());
+        assertEquals(21, append("after reopen"));
+        journal.acknowledge(100);
+        assertEquals(0, journal.getPendingCount());
+        reopen();
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(22, append("after ack"));
+    }
+
+    @Test
+    public void acknowledgedSegmentsAreDeleted() throws Exception {
+        long last = 0;
+        for(int i = 0; i < 40; i++) last = append("message " + i);
+        File[] before = segments();
+        assertTrue(before.length > 3);
+        journal.acknowledge(last / 2);
+        File[] after = segments();
+        assertTrue(after.length < before.length);
+        assertTrue(after.length > 1);
+        assertEquals(before[before.length - 1], after[after.length - 1]);
+        journal.acknowledge(last);
+        assertEquals(1, segments().length);
+        assertEquals(0, journal.getPendingCount());
+        reopen();
+        assertEquals(1, segments().length);
+        assertEquals(last + 1, append("after truncation"));
+    }
+
+    @Test
+    public void tornTailIsDropped() throws Exception {
+        for(int i = 0; i < 10; i++) append("message " + i);
+        journal.close();
+        File[] segments = segments();
+        RandomAccessFile f = new RandomAccessFile(segments[segments.length - 1], "rw");
+        int pos = 0;
+        int last = 0;
+        while (pos + 4 <= SEGMENT_SIZE){
+            f.seek(pos);
+            int length = f.readInt();
+            if(length == 0) break;
+            last = pos;
+            pos += BT.Journal.RECORD_HEADER_SIZE + length;
+        }
+        f.seek(last + BT.Journal.RECORD_HEADER_SIZE);
+        f.write('X');
+        f.close();
+        journal = open();
+        assertEquals(9, journal.getPendingCount());
+        assertEquals(10, append("replaces the torn record"));
+        reopen();
+        assertEquals(10, journal.getPendingCount());
+        assertEquals(11, append("after the second reopen"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void recordsLargerThanASegmentAreRejected() throws Exception {
+        char[] c = new char[SEGMENT_SIZE];
+        Arrays.fill(c, 'x');
+        append(new String(c));
+    }
+}
@@ -0,0 +1,222 @@
+package io.eberlein.abt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * feeds a byte stream in reads of a fixed size through a Reader
+ * frames use control type ids, so they reach the ReaderInterface without a registered codec
+ */
+public class ReaderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int TYPE = -100;
+    private static final int[] CHUNKS = {1, 2, 3, 7, 100, 1023, 1024, 4096, 1 << 20};
+
+    private final BT.BufferPool pool = new BT.BufferPool(64 * 1024 * 1024);
+    private final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    private final List<String> events = new ArrayList<>();
+
+    /**
+     * hands out the bytes in reads of at most chunk bytes, then signals the end of the stream
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final byte[] data;
+        private final int chunk;
+        private int pos = 0;
+
+        ChunkedInputStream(byte[] data, int chunk){
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(pos == data.length) return -1;
+            int n = Math.min(Math.min(len, chunk), data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    private void line(String s){
+        byte[] b = (s + "\n").getBytes(UTF_8);
+        stream.write(b, 0, b.length);
+    }
+
+    private void frame(byte[] payload){
+        BT.BinaryWriter w = BT.BinaryWriter.beginFrame(pool, TYPE);
+        w.writeBytes(payload);
+        raw(w.endFrame());
+    }
+
+    private void raw(BT.BufferPool.Buffer frame){
+        ByteBuffer bb = frame.buffer();
+        stream.write(frame.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+        frame.release();
+    }
+
+    private static byte[] bytes(int size){
+        byte[] b = new byte[size];
+        for(int i = 0; i < size; i++) b[i] = (byte) (i * 7 + size);
+        return b;
+    }
+
+    private static String text(int size){
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; sb.length() < size; i++) sb.append(i % 10 == 0 ? 'ä' : (char) ('a' + i % 26));
+        return sb.toString();
+    }
+
+    /**
+     * runs a reader over the stream until it ends
+     * @return every line, frame and ipc message in the order the reader delivered them
+     */
+    private List<String> read(int chunk){
+        events.clear();
+        BT.ReaderInterface readerInterface = new BT.ReaderInterface() {
+            @Override
+            public void inform(int message) {
+            }
+
+            @Override
+            public void finished() {
+                events.add("finished");
+            }
+
+            @Override
+            public void onControl(int typeId, BT.BinaryReader in) {
+                assertEquals(TYPE, typeId);
+                byte[] b = in.readBytes();
+                assertEquals(0, in.remaining());
+                events.add("frame " + b.length + " " + Arrays.hashCode(b));
+            }
+
+            @Override
+            public void onRecordsDelivered(long seq) {
+            }
+        };
+        BT.WriterInterface writerInterface = new BT.WriterInterface() {
+            @Override
+            public void inform(int message) {
+                if(message == BT.Client.Reader.MSG_READER_DEAD) events.add("dead");
+            }
+
+            @Override
+            public void finished() {
+            }
+
+            @Override
+            public void onWritten() {
+            }
+        };
+        BT.OnDataReceivedInterface onDataReceivedInterface = new BT.OnDataReceivedInterface() {
+            @Override
+            public void onReceived(String data) {
+                events.add("line " + data);
+            }
+        };
+        BT.Client.Reader reader = new BT.Client.Reader(new ChunkedInputStream(stream.toByteArray(), chunk), onDataReceivedInterface, null, readerInterface, writerInterface, pool, 0);
+        reader.doInBackground();
+        return new ArrayList<>(events);
+    }
+
+    private static List<String> expected(String... events){
+        List<String> r = new ArrayList<>(Arrays.asList(events));
+        r.add("dead");
+        r.add("finished");
+        return r;
+    }
+
+    private static String frameEvent(byte[] b){
+        return "frame " + b.length + " " + Arrays.hashCode(b);
+    }
+
+    @Test
+    public void linesAndFramesSplitAcrossReads() {
+        byte[] small = bytes(10);
+        byte[] medium = bytes(1500);
+        byte[] large = bytes(70000);
+        String longLine = text(5000);
+        line("first");
+        frame(small);
+        line("ümläut");
+        frame(medium);
+        line(longLine);
+        frame(large);
+        frame(new byte[0]);
+        line("last");
+        List<String> want = expected("line first", frameEvent(small), "line ümläut", frameEvent(medium), "line " + longLine, frameEvent(large), frameEvent(new byte[0]), "line last");
+        for(int chunk : CHUNKS) assertEquals("chunk " + chunk, want, read(chunk));
+    }
+
+    @Test
+    public void emptyLinesAreSkipped() {
+        line("a");
+        line("");
+        line("");
+        line("b");
+        for(int chunk : CHUNKS) assertEquals("chunk " + chunk, expected("line a", "line b"), read(chunk));
+    }
+
+    @Test
+    public void bufferGrowsPastTheReadBufferSize() {
+        int[] sizes = {BT.Client.Reader.READ_BUFFER_SIZE - 4, BT.Client.Reader.READ_BUFFER_SIZE, BT.Client.Reader.READ_BUFFER_SIZE + 1, 3 * BT.Client.Reader.READ_BUFFER_SIZE, 1 << 20};
+        List<String> want = new ArrayList<>();
+        for(int size : sizes){
+            byte[] b = bytes(size);
+            frame(b);
+            want.add(frameEvent(b));
+            String s = text(size);
+            line(s);
+            want.add("line " + s);
+        }
+        want.add("dead");
+        want.add("finished");
+        for(int chunk : new int[]{1000, 1024, 4096, 1 << 20}) assertEquals("chunk " + chunk, want, read(chunk));
+    }
+
+    @Test
+    public void framesAboveTheLimitKillTheReader() {
+        line("before");
+        stream.write(BT.BinaryWriter.FRAME_MARKER);
+        stream.write(BT.BinaryWriter.zigZag(TYPE) & 0x7F | 0x80);
+        stream.write(BT.BinaryWriter.zigZag(TYPE) >>> 7);
+        int length = BT.Client.Reader.MAX_FRAME_SIZE + 1;
+        while ((length & ~0x7F) != 0){
+            stream.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        stream.write(length);
+        line("after");
+        assertEquals(expected("line before"), read(16));
+    }
+
+    @Test
+    public void malformedPayloadsDoNotKillTheReader() {
+        BT.BinaryWriter w = BT.BinaryWriter.beginFrame(pool, TYPE);
+        w.writeVarInt(-1);
+        raw(w.endFrame());
+        w = BT.BinaryWriter.beginFrame(pool, TYPE);
+        w.writeVarInt(100);
+        raw(w.endFrame());
+        byte[] b = bytes(3);
+        frame(b);
+        line("still alive");
+        assertEquals(expected(frameEvent(b), "line still alive"), read(5));
+    }
+}